@@ -0,0 +1,145 @@
+package manimage.common;
+
+
+import javafx.application.Platform;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link DBInterface} calls off the FX thread. Reads run on a small pool that matches the reader connections of
+ * the database, and writes run one at a time in submission order on a dedicated thread. Use {@link #FX} as the
+ * executor of a dependent stage to get results back on the FX thread.
+ */
+public class AsyncDBInterface {
+
+    /**
+     * Executor that runs tasks on the JavaFX Application Thread.
+     */
+    public static final Executor FX = Platform::runLater;
+
+    private static final int READER_THREADS = 4;
+
+    private final DBInterface db;
+
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+
+    private CompletableFuture<?> currentSearch = null;
+
+
+    public AsyncDBInterface(DBInterface db) {
+        this.db = db;
+
+        final AtomicInteger readers = new AtomicInteger();
+        readExecutor = Executors.newFixedThreadPool(READER_THREADS, r -> createThread(r, "DB Reader " + readers.incrementAndGet()));
+        writeExecutor = Executors.newSingleThreadExecutor(r -> createThread(r, "DB Writer"));
+    }
+
+    private static Thread createThread(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    //------------------------ Getters ---------------------------------------------------------------------------------
+
+    public DBInterface getDatabase() {
+        return db;
+    }
+
+    //------------------ Operators -------------------------------------------------------------------------------------
+
+    public <T> CompletableFuture<T> read(DBCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> invoke(call), readExecutor);
+    }
+
+    public <T> CompletableFuture<T> write(DBCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> invoke(call), writeExecutor);
+    }
+
+    /**
+     * Runs a read that replaces the previous search. The previous search is cancelled, so it is skipped if it has not
+     * started yet and its result is discarded if it has.
+     */
+    public synchronized <T> CompletableFuture<T> search(DBCall<T> call) {
+        if (currentSearch != null) currentSearch.cancel(false);
+
+        final CompletableFuture<T> future = read(call);
+        currentSearch = future;
+        return future;
+    }
+
+    public CompletableFuture<ArrayList<ImageInfo>> getImages(int limit, int offset, OrderBy order, String[] tags, String pathContains) {
+        return read(db -> db.getImages(limit, offset, order, tags, pathContains));
+    }
+
+    public CompletableFuture<Integer> getNumImages() {
+        return read(DBInterface::getNumImages);
+    }
+
+    public CompletableFuture<Void> addImage(String path) {
+        return write(db -> {
+            db.addImage(path);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> addBatchImages(Iterable<File> files) {
+        return write(db -> {
+            db.addBatchImages(files);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> editTags(Iterable<ImageInfo> imgs, Collection<String> add, Collection<String> remove) {
+        return write(db -> {
+            db.editTags(imgs, add, remove, false);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> removeImgs(Iterable<ImageInfo> imgs) {
+        return write(db -> {
+            db.removeImgs(imgs);
+            return null;
+        });
+    }
+
+    public void shutdown() {
+        readExecutor.shutdownNow();
+        writeExecutor.shutdown();
+    }
+
+    private <T> T invoke(DBCall<T> call) {
+        try {
+            return call.call(db);
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Unwraps the exception a failed future completed with.
+     */
+    public static Throwable getCause(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t;
+    }
+
+    @FunctionalInterface
+    public interface DBCall<T> {
+
+        T call(DBInterface db) throws SQLException;
+
+    }
+
+}
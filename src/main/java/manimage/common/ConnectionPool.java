@@ -0,0 +1,55 @@
+package manimage.common;
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed set of read-only connections to one database. Callers borrow a connection for the duration of a query and must
+ * always release it again.
+ */
+public class ConnectionPool {
+
+    private final ArrayList<Connection> connections = new ArrayList<>();
+    private final BlockingQueue<Connection> idle;
+
+
+    public ConnectionPool(String url, String username, String password, int size) throws SQLException {
+        idle = new ArrayBlockingQueue<>(size);
+
+        for (int i = 0; i < size; i++) {
+            Connection connection = DriverManager.getConnection(url, username, password);
+            connection.setReadOnly(true);
+            connections.add(connection);
+            idle.add(connection);
+        }
+    }
+
+    public Connection borrow() throws SQLException {
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    public void release(Connection connection) {
+        idle.offer(connection);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public void close() throws SQLException {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+}
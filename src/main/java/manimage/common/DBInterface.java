@@ -2,46 +2,241 @@ package manimage.common;
 
 
 import java.io.File;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.ObjIntConsumer;
 
 public class DBInterface {
 
-    private static final String SQL_INITIALIZE_TABLES = "CREATE TABLE imgs(img_id INT NOT NULL PRIMARY KEY AUTO_INCREMENT, img_path NVARCHAR(1024) UNIQUE, img_src NVARCHAR(1024), img_added LONG NOT NULL, img_tags NVARCHAR(1024));";
+    private static final String SQL_INITIALIZE_TABLES = "CREATE TABLE imgs(img_id INT NOT NULL PRIMARY KEY AUTO_INCREMENT, img_path NVARCHAR(1024) UNIQUE, img_src NVARCHAR(1024), img_added LONG NOT NULL);";
+    private static final String SQL_INITIALIZE_TAG_TABLES = "CREATE TABLE tags(tag_id INT NOT NULL PRIMARY KEY AUTO_INCREMENT, tag_name NVARCHAR(256) NOT NULL UNIQUE);" +
+            "CREATE TABLE image_tags(img_id INT NOT NULL, tag_id INT NOT NULL, PRIMARY KEY(img_id, tag_id), FOREIGN KEY(img_id) REFERENCES imgs(img_id) ON DELETE CASCADE, FOREIGN KEY(tag_id) REFERENCES tags(tag_id) ON DELETE CASCADE);" +
+            "CREATE INDEX image_tags_tag_idx ON image_tags(tag_id, img_id);";
 
+    private static final String SQL_INITIALIZE_FINGERPRINT_TABLES = "CREATE TABLE IF NOT EXISTS img_fingerprints(img_id INT NOT NULL PRIMARY KEY, file_size LONG NOT NULL, file_modified LONG NOT NULL, dhash LONG, width INT, height INT, FOREIGN KEY(img_id) REFERENCES imgs(img_id) ON DELETE CASCADE);" +
+            "CREATE TABLE IF NOT EXISTS histogram_blocks(block_id INT NOT NULL PRIMARY KEY, data VARBINARY NOT NULL);";
+
+    /**
+     * Number of histograms packed into each row of histogram_blocks. H2 reads rows of one 2 KB histogram each many
+     * times slower than the same bytes in fewer, larger rows.
+     */
+    private static final int HISTOGRAM_BLOCK_SIZE = 16;
+
+    private static final String SQL_INITIALIZE_DUPLICATE_TABLES = "CREATE TABLE IF NOT EXISTS duplicate_pairs(img1 INT NOT NULL, img2 INT NOT NULL, similarity DOUBLE NOT NULL, dismissed BOOLEAN NOT NULL DEFAULT FALSE, PRIMARY KEY(img1, img2), FOREIGN KEY(img1) REFERENCES imgs(img_id) ON DELETE CASCADE, FOREIGN KEY(img2) REFERENCES imgs(img_id) ON DELETE CASCADE);" +
+            "CREATE INDEX IF NOT EXISTS duplicate_pairs_similarity_idx ON duplicate_pairs(dismissed, similarity DESC, img1, img2);" +
+            "CREATE TABLE IF NOT EXISTS duplicate_scan(scan_id INT NOT NULL PRIMARY KEY, last_img_id INT NOT NULL, max_distance INT NOT NULL);" +
+            "CREATE TABLE IF NOT EXISTS duplicate_clusters(img_id INT NOT NULL PRIMARY KEY, cluster_id INT NOT NULL, FOREIGN KEY(img_id) REFERENCES imgs(img_id) ON DELETE CASCADE);" +
+            "CREATE INDEX IF NOT EXISTS duplicate_clusters_cluster_idx ON duplicate_clusters(cluster_id);";
+
+    private static final String SQL_INITIALIZE_INDEXES = "CREATE INDEX IF NOT EXISTS imgs_id_desc_idx ON imgs(img_id DESC);" +
+            "CREATE INDEX IF NOT EXISTS imgs_added_idx ON imgs(img_added, img_id);" +
+            "CREATE INDEX IF NOT EXISTS imgs_added_desc_idx ON imgs(img_added DESC, img_id DESC);" +
+            "CREATE INDEX IF NOT EXISTS imgs_path_idx ON imgs(img_path, img_id);" +
+            "CREATE INDEX IF NOT EXISTS imgs_path_desc_idx ON imgs(img_path DESC, img_id DESC);" +
+            "CREATE INDEX IF NOT EXISTS imgs_src_idx ON imgs(img_src, img_id);" +
+            "CREATE INDEX IF NOT EXISTS imgs_src_desc_idx ON imgs(img_src DESC, img_id DESC);";
+
+    private static final Set<String> NOT_NULL_COLUMNS = new HashSet<>(Arrays.asList("img_id", "img_added"));
+
+    private static final String SQL_SELECT_IMG_TAGS = "(SELECT GROUP_CONCAT(tags.tag_name SEPARATOR ' ') FROM image_tags JOIN tags ON tags.tag_id=image_tags.tag_id WHERE image_tags.img_id=imgs.img_id) AS img_tags";
+
+    private static final int READER_CONNECTIONS = 4;
+
+    /**
+     * Connection used for every write. Methods that write hold the monitor of this object, so there is only ever one
+     * writer at a time.
+     */
     private final Connection connection;
 
-    private final ArrayList<ImageDatabaseUpdateListener> listeners = new ArrayList<>();
+    /**
+     * Connections used for searches, counts and tag lookups. Readers never take the monitor of this object and only see
+     * committed data, so they keep running while a write transaction is in progress.
+     */
+    private final ConnectionPool readers;
 
-    final private ArrayList<SoftReference<ImageInfo>> imgs = new ArrayList<>();
+    private final List<ImageDatabaseUpdateListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ImageInfoCache cache = new ImageInfoCache();
+
+    private final Map<String, Integer> tagIds = new ConcurrentHashMap<>();
+
+    /**
+     * Number of images using each tag. Loaded when the tables are verified and then kept up to date by every method
+     * that changes image_tags, so counts can be looked up without scanning the table. Guarded by its own monitor.
+     */
+    private final HashMap<String, Integer> tagCounts = new HashMap<>();
+
+    private volatile int importBatchSize = 1000;
+
+    /**
+     * Incremented whenever stored fingerprints change, so indexes built from them can tell when they are out of date.
+     * Only written by synchronized methods.
+     */
+    private volatile int fingerprintRevision = 0;
 
 
     public DBInterface(String path, String username, String password) throws SQLException {
-        System.out.println("Attempting to connect to: [jdbc:h2:" + path + "] With user/password: " + username + "/" + password);
-        connection = DriverManager.getConnection("jdbc:h2:" + path, username, password);
+        //Without MULTI_THREADED, H2 runs the statements of every connection one at a time
+        final String url = "jdbc:h2:" + path + ";MULTI_THREADED=1";
+        System.out.println("Attempting to connect to: [" + url + "] With user/password: " + username + "/" + password);
+        connection = DriverManager.getConnection(url, username, password);
         System.out.println("Connected successfully");
 
         verifyTables();
+
+        //Readers stream their results, H2 otherwise buffers results of more than MAX_MEMORY_ROWS rows in a temp file
+        readers = new ConnectionPool(url + ";LAZY_QUERY_EXECUTION=1", username, password, READER_CONNECTIONS);
     }
 
     private synchronized void verifyTables() throws SQLException {
         System.out.println("Attempting to verify table...");
-        if (!tableExists("imgs", "img_id", "img_path", "img_src", "img_added", "img_tags")) {
+        if (!tableExists("imgs", "img_id", "img_path", "img_src", "img_added")) {
             dropTables();
             System.out.println("Initializing tables...");
             Statement state = connection.createStatement();
             state.executeUpdate(SQL_INITIALIZE_TABLES);
+            state.executeUpdate(SQL_INITIALIZE_TAG_TABLES);
+            state.close();
+        } else if (!tableExists("tags", "tag_id", "tag_name") || !tableExists("image_tags", "img_id", "tag_id")) {
+            System.out.println("Initializing tag tables...");
+            Statement state = connection.createStatement();
+            state.executeUpdate("DROP TABLE IF EXISTS image_tags; DROP TABLE IF EXISTS tags;");
+            state.executeUpdate(SQL_INITIALIZE_TAG_TABLES);
             state.close();
         }
+
+        if (tableExists("imgs", "img_tags")) migrateTagsColumn();
+
+        Statement state = connection.createStatement();
+        state.executeUpdate(SQL_INITIALIZE_FINGERPRINT_TABLES);
+        if (tableExists("img_fingerprints", "histogram")) migrateHistogramColumn();
+        if (!tableExists("img_fingerprints", "dhash")) state.executeUpdate("ALTER TABLE img_fingerprints ADD COLUMN dhash LONG;");
+        if (!tableExists("img_fingerprints", "width")) state.executeUpdate("ALTER TABLE img_fingerprints ADD COLUMN width INT; ALTER TABLE img_fingerprints ADD COLUMN height INT;");
+        final boolean clustersExist = tableExists("duplicate_clusters", "img_id", "cluster_id");
+        state.executeUpdate(SQL_INITIALIZE_DUPLICATE_TABLES);
+        state.executeUpdate(SQL_INITIALIZE_INDEXES);
+        state.close();
+        if (!clustersExist) migrateDuplicateClusters();
+        loadTagCounts();
         System.out.println("Tables successfully verified");
     }
 
+    /**
+     * One-time migration from the legacy space-delimited imgs.img_tags column into the tags/image_tags tables. The
+     * legacy column is dropped in the same transaction once every row has been copied.
+     */
+    private synchronized void migrateTagsColumn() throws SQLException {
+        System.out.println("Migrating tags to tag tables...");
+        final long start = System.currentTimeMillis();
+        connection.setAutoCommit(false);
+        try {
+            Statement state = connection.createStatement();
+            PreparedStatement insert = connection.prepareStatement("MERGE INTO image_tags (img_id, tag_id) KEY(img_id, tag_id) VALUES (?, ?)");
+            ResultSet rs = state.executeQuery("SELECT img_id, img_tags FROM imgs");
+            int count = 0;
+            while (rs.next()) {
+                final int id = rs.getInt(1);
+                for (String tag : imgTagsStringToArray(rs.getNString(2))) {
+                    insert.setInt(1, id);
+                    insert.setInt(2, getTagId(tag.toLowerCase(), true));
+                    insert.addBatch();
+                }
+                if (++count % 1000 == 0) insert.executeBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+
+            state.executeUpdate("ALTER TABLE imgs DROP COLUMN img_tags");
+            state.close();
+            connection.commit();
+            System.out.println("Migrated tags of " + count + " images in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (SQLException e) {
+            connection.rollback();
+            tagIds.clear();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * One-time migration of histograms stored one per row in img_fingerprints.histogram into histogram_blocks.
+     */
+    private synchronized void migrateHistogramColumn() throws SQLException {
+        System.out.println("Migrating histograms to histogram blocks...");
+        connection.setAutoCommit(false);
+        try {
+            final Map<Integer, ImageHistogram> histograms = new HashMap<>();
+            Statement state = connection.createStatement();
+            ResultSet rs = state.executeQuery("SELECT img_id, histogram FROM img_fingerprints WHERE histogram IS NOT NULL;");
+            while (rs.next()) {
+                try {
+                    histograms.put(rs.getInt(1), ImageHistogram.fromBytes(rs.getBytes(2)));
+                } catch (HistogramReadException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            state.executeUpdate("DELETE FROM img_fingerprints WHERE histogram IS NULL;");
+            state.executeUpdate("ALTER TABLE img_fingerprints DROP COLUMN histogram;");
+            state.close();
+            writeHistogramBlocks(histograms);
+
+            connection.commit();
+            System.out.println("Migrated " + histograms.size() + " histograms");
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * One-time grouping of the duplicate pairs stored before duplicate clusters were added.
+     */
+    private synchronized void migrateDuplicateClusters() throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            final List<DuplicateCandidate> pairs = new ArrayList<>();
+            Statement state = connection.createStatement();
+            ResultSet rs = state.executeQuery("SELECT img1, img2, similarity FROM duplicate_pairs WHERE NOT dismissed;");
+            while (rs.next()) {
+                pairs.add(new DuplicateCandidate(rs.getInt(1), rs.getInt(2), rs.getDouble(3)));
+            }
+            state.close();
+
+            mergeDuplicateClusters(pairs);
+            connection.commit();
+            System.out.println("Grouped " + pairs.size() + " duplicate pairs into clusters");
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
     private synchronized void dropTables() throws SQLException {
         System.out.println("Attempting to drop tables...");
         Statement state = connection.createStatement();
+        state.executeUpdate("DROP TABLE IF EXISTS duplicate_clusters;");
+        state.executeUpdate("DROP TABLE IF EXISTS duplicate_pairs;");
+        state.executeUpdate("DROP TABLE IF EXISTS duplicate_scan;");
+        state.executeUpdate("DROP TABLE IF EXISTS img_fingerprints;");
+        state.executeUpdate("DROP TABLE IF EXISTS histogram_blocks;");
+        state.executeUpdate("DROP TABLE IF EXISTS image_tags;");
+        state.executeUpdate("DROP TABLE IF EXISTS tags;");
         state.executeUpdate("DROP TABLE IF EXISTS imgs;");
         state.close();
+        tagIds.clear();
+        synchronized (tagCounts) {
+            tagCounts.clear();
+        }
+        cache.clear();
     }
 
     private synchronized boolean tableExists(String name, String... columns) {
@@ -55,66 +250,290 @@ public class DBInterface {
         }
     }
 
-    public synchronized ArrayList<ImageInfo> getImages(int limit, int offset, OrderBy order, String[] tags, String pathContains) throws SQLException {
-        StringBuilder query = new StringBuilder("SELECT imgs.* FROM imgs ");
+    public ArrayList<ImageInfo> getImages(int limit, int offset, OrderBy order, String[] tags, String pathContains) throws SQLException {
+        return getImages(limit, offset, null, order, tags, pathContains);
+    }
+
+    /**
+     * Seeks to the rows that follow a cursor under the given order. Unlike an OFFSET, the cost does not depend on how
+     * many rows precede the cursor.
+     *
+     * @param after Cursor of the row preceding the requested page, or null for the first page
+     */
+    public ArrayList<ImageInfo> getImages(int limit, PageCursor after, OrderBy order, String[] tags, String pathContains) throws SQLException {
+        if (after != null && order == null) throw new IllegalArgumentException("Seeking requires an order");
+        return getImages(limit, 0, after, order, tags, pathContains);
+    }
+
+    private ArrayList<ImageInfo> getImages(int limit, int offset, PageCursor after, OrderBy order, String[] tags, String pathContains) throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            return getImages(reader, limit, offset, after, order, tags, pathContains);
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    private ArrayList<ImageInfo> getImages(Connection reader, int limit, int offset, PageCursor after, OrderBy order, String[] tags, String pathContains) throws SQLException {
+        final ArrayList<ImageInfo> results = new ArrayList<>();
+        final ArrayList<Object> params = new ArrayList<>();
+        final String filter = buildSearchFilter(reader, tags, pathContains, after, order, params);
+        if (filter == null) return results;
+
+        StringBuilder query = new StringBuilder("SELECT imgs.* FROM imgs ").append(filter);
+        if (order != null) query.append(" ORDER BY ").append(order);
+        if (limit > 0) query.append(" LIMIT ").append(limit);
+        if (offset > 0) query.append(" OFFSET ").append(offset);
+
+        //Only concatenate tags for the rows that survive the limit
+        query.insert(0, "SELECT imgs.*, " + SQL_SELECT_IMG_TAGS + " FROM (").append(") imgs");
+        if (order != null) query.append(" ORDER BY ").append(order);
+        query.append(";");
+
+        PreparedStatement state = reader.prepareStatement(query.toString());
+        setParameters(state, params);
+
+        final ResultSet rs = state.executeQuery();
+        while (rs.next()) {
+            results.add(readImage(rs));
+        }
+        state.close();
+
+        return results;
+    }
+
+    /**
+     * @return The cached image of the current row, updated from the row, or a new cached image if there was none
+     */
+    private ImageInfo readImage(ResultSet rs) throws SQLException {
+        final int id = rs.getInt("img_id");
+        final long added = rs.getLong("img_added");
+        final String src = rs.getNString("img_src");
+        final String path = rs.getNString("img_path");
+        final String[] tags = imgTagsStringToArray(rs.getNString("img_tags"));
+
+        //Readers run concurrently, so the lookup and insert must be one step to keep a single instance per id
+        final ImageInfo img = cache.getOrCreate(id, () -> new ImageInfo(id, added, src, path, tags));
+        img.update(src, path, tags);
+        return img;
+    }
+
+    /**
+     * @return Up to limit images with ids greater than the given id, in id order
+     */
+    public ArrayList<ImageInfo> getImagesAfter(int imgId, int limit) throws SQLException {
+        final ArrayList<ImageInfo> results = new ArrayList<>();
+
+        final Connection reader = readers.borrow();
+        try {
+            PreparedStatement state = reader.prepareStatement("SELECT imgs.*, " + SQL_SELECT_IMG_TAGS + " FROM imgs WHERE img_id>? ORDER BY img_id LIMIT ?;");
+            state.setInt(1, imgId);
+            state.setInt(2, limit);
+            ResultSet rs = state.executeQuery();
+            while (rs.next()) {
+                results.add(readImage(rs));
+            }
+            state.close();
+        } finally {
+            readers.release(reader);
+        }
+
+        return results;
+    }
+
+    /**
+     * @return The images with the given ids that are still in the database, keyed by id
+     */
+    public Map<Integer, ImageInfo> getImagesById(Collection<Integer> ids) throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            return getImagesById(reader, ids);
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    private Map<Integer, ImageInfo> getImagesById(Connection reader, Collection<Integer> ids) throws SQLException {
+        final Map<Integer, ImageInfo> results = new HashMap<>();
+
+        PreparedStatement state = reader.prepareStatement("SELECT imgs.*, " + SQL_SELECT_IMG_TAGS + " FROM imgs WHERE img_id=?;");
+        for (int id : ids) {
+            state.setInt(1, id);
+            ResultSet rs = state.executeQuery();
+            if (rs.next()) results.put(id, readImage(rs));
+        }
+        state.close();
+
+        return results;
+    }
+
+    /**
+     * @return The sort key of an image under the given order, or null if the image is no longer in the database
+     */
+    public PageCursor getPageCursor(ImageInfo img, OrderBy order) throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            PreparedStatement state = reader.prepareStatement("SELECT " + String.join(",", order.getColumns()) + " FROM imgs WHERE img_id=?;");
+            state.setInt(1, img.getId());
+            final PageCursor cursor = readPageCursor(state.executeQuery(), order);
+            state.close();
+            return cursor;
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    /**
+     * Finds the sort key of the row a number of rows past a cursor. Only the sort columns are read, so the composite
+     * sort indexes are enough to answer it.
+     *
+     * @param from Cursor to count from, or null to count from the first row
+     * @param skip Number of matching rows between the cursor and the requested row
+     * @return The sort key of the requested row, or null if there are not enough rows
+     */
+    public PageCursor getPageCursor(PageCursor from, int skip, OrderBy order, String[] tags, String pathContains) throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            final ArrayList<Object> params = new ArrayList<>();
+            final String filter = buildSearchFilter(reader, tags, pathContains, from, order, params);
+            if (filter == null) return null;
+
+            final String[] columns = order.getColumns();
+            final String[] qualified = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                qualified[i] = "imgs." + columns[i];
+            }
+
+            PreparedStatement state = reader.prepareStatement("SELECT " + String.join(",", qualified) + " FROM imgs " + filter + " ORDER BY " + order + " LIMIT 1 OFFSET " + Math.max(skip, 0) + ";");
+            setParameters(state, params);
+            final PageCursor cursor = readPageCursor(state.executeQuery(), order);
+            state.close();
+            return cursor;
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    private static PageCursor readPageCursor(ResultSet rs, OrderBy order) throws SQLException {
+        if (!rs.next()) return null;
+
+        final Object[] values = new Object[order.getColumns().length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rs.getObject(i + 1);
+        }
+        return new PageCursor(values);
+    }
 
+    /**
+     * Builds the JOIN and WHERE clauses shared by every image search.
+     *
+     * @param params Receives the values for the placeholders in the returned clause, in order
+     * @return The clause, or null if nothing can match the search
+     */
+    private String buildSearchFilter(Connection reader, String[] tags, String pathContains, PageCursor after, OrderBy order, List<Object> params) throws SQLException {
+        final StringBuilder filter = new StringBuilder();
         final ArrayList<String> whereParts = new ArrayList<>();
+        final ArrayList<Integer> includeTags = new ArrayList<>();
+        final ArrayList<Integer> excludeTags = new ArrayList<>();
 
-        if (tags != null && tags.length > 0) {
-            tags = tags.clone();
-            final String[] sqlTagArr = tags.clone();
-            for (int i = 0; i < sqlTagArr.length; i++) {
-                tags[i] = tags[i].toLowerCase();
-                if (sqlTagArr[i].charAt(0) == '-') {
-                    sqlTagArr[i] = "img_tags NOT LIKE ?";
-                    tags[i] = tags[i].substring(1);
+        if (tags != null) {
+            for (String tag : tags) {
+                final boolean exclude = tag.startsWith("-");
+                if (exclude) tag = tag.substring(1);
+                if (tag.isEmpty()) continue;
+
+                final int tagId = findTagId(reader, tag.toLowerCase());
+                if (exclude) {
+                    if (tagId != -1) excludeTags.add(tagId);
+                } else {
+                    //No image can match a tag that has never been used
+                    if (tagId == -1) return null;
+                    includeTags.add(tagId);
                 }
-                else sqlTagArr[i] = "img_tags LIKE ?";
             }
-            whereParts.add(String.join(" AND ", sqlTagArr));
+        }
+
+        for (int i = 0; i < includeTags.size(); i++) {
+            filter.append("JOIN image_tags it").append(i).append(" ON it").append(i).append(".img_id=imgs.img_id AND it").append(i).append(".tag_id=? ");
+            params.add(includeTags.get(i));
+        }
+        for (int tagId : excludeTags) {
+            whereParts.add("NOT EXISTS (SELECT 1 FROM image_tags WHERE image_tags.img_id=imgs.img_id AND image_tags.tag_id=?)");
+            params.add(tagId);
         }
 
         if (pathContains != null && !pathContains.isEmpty()) {
             whereParts.add("img_path LIKE ?");
+            params.add("%" + pathContains + "%");
+        }
+
+        if (after != null) {
+            whereParts.add(buildSeekCondition(order, after, params));
         }
 
         if (!whereParts.isEmpty()) {
-            query.append("WHERE ").append(String.join(" AND ", whereParts));
+            filter.append("WHERE ").append(String.join(" AND ", whereParts));
         }
 
-        if (order != null) query.append(" ORDER BY ").append(order);
-        if (limit > 0) query.append(" LIMIT ").append(limit);
-        if (offset > 0) query.append(" OFFSET ").append(offset);
-        query.append(";");
+        return filter.toString();
+    }
 
-        PreparedStatement state = connection.prepareStatement(query.toString());
-        int i = 1;
+    /**
+     * Builds a condition matching every row that sorts after the cursor. NULLs sort lowest, so they come first in
+     * ascending order and last in descending order.
+     */
+    private static String buildSeekCondition(OrderBy order, PageCursor after, List<Object> params) {
+        final String[] columns = order.getColumns();
+        final boolean[] descending = order.getDescending();
+        final StringBuilder condition = new StringBuilder();
 
-        if (tags != null && tags.length > 0) {
-            for (String tag : tags) {
-                state.setNString(i, "% " + tag + " %");
-                i++;
-            }
+        //Redundant bound on the leading column so H2 can start the index scan at the cursor
+        final Object first = after.getValue(0);
+        if (first != null && NOT_NULL_COLUMNS.contains(columns[0])) {
+            condition.append("imgs.").append(columns[0]).append(descending[0] ? "<=?" : ">=?").append(" AND ");
+            params.add(first);
         }
 
-        if (pathContains != null && !pathContains.isEmpty()) {
-            state.setNString(i, "%" + pathContains + "%");
+        condition.append(buildSeekCondition(columns, descending, after, 0, params));
+        return condition.toString();
+    }
+
+    private static String buildSeekCondition(String[] columns, boolean[] descending, PageCursor after, int index, List<Object> params) {
+        final String column = "imgs." + columns[index];
+        final Object value = after.getValue(index);
+
+        String strictlyAfter;
+        if (value == null) {
+            strictlyAfter = descending[index] ? "FALSE" : column + " IS NOT NULL";
+        } else if (descending[index]) {
+            if (NOT_NULL_COLUMNS.contains(columns[index])) strictlyAfter = column + "<?";
+            else strictlyAfter = "(" + column + "<? OR " + column + " IS NULL)";
+            params.add(value);
+        } else {
+            strictlyAfter = column + ">?";
+            params.add(value);
         }
 
-        final ResultSet rs = state.executeQuery();
-        final ArrayList<ImageInfo> results = new ArrayList<>();
-        while (rs.next()) {
-            ImageInfo img = getCachedImg(rs.getInt("img_id"));
-            if (img == null) {
-                img = new ImageInfo(rs.getInt("img_id"), rs.getLong("img_added"), rs.getNString("img_src"), rs.getNString("img_path"), imgTagsStringToArray(rs.getNString("img_tags")));
-            } else {
-                img.update(rs.getNString("img_src"), rs.getNString("img_path"), imgTagsStringToArray(rs.getNString("img_tags")));
-            }
-            results.add(img);
+        if (index == after.size() - 1) return strictlyAfter;
+
+        String equal;
+        if (value == null) {
+            equal = column + " IS NULL";
+        } else {
+            equal = column + "=?";
+            params.add(value);
         }
-        state.close();
 
-        return results;
+        return "(" + strictlyAfter + " OR (" + equal + " AND " + buildSeekCondition(columns, descending, after, index + 1, params) + "))";
+    }
+
+    private static void setParameters(PreparedStatement state, List<Object> params) throws SQLException {
+        int i = 1;
+        for (Object param : params) {
+            if (param instanceof String) state.setNString(i, (String) param);
+            else state.setObject(i, param);
+            i++;
+        }
     }
 
     private synchronized void addImage(String path, String src, String tags, boolean isBatch) throws SQLException {
@@ -136,13 +555,9 @@ public class DBInterface {
             columns.add("img_src");
             strings.add(src);
         }
-        if (tags != null && !tags.isEmpty()) {
-            columns.add("img_tags");
-            strings.add(tags);
-        }
         columns.add("img_added");
 
-        PreparedStatement state = connection.prepareStatement("INSERT INTO imgs (" + String.join(",", columns) + ") VALUES (" + String.join(",", Collections.nCopies(strings.size() + 1, "?")) + ")");
+        PreparedStatement state = connection.prepareStatement("INSERT INTO imgs (" + String.join(",", columns) + ") VALUES (" + String.join(",", Collections.nCopies(strings.size() + 1, "?")) + ")", Statement.RETURN_GENERATED_KEYS);
         int i = 1;
         for (String str : strings) {
             state.setNString(i, str);
@@ -150,70 +565,965 @@ public class DBInterface {
         }
         state.setLong(i, System.currentTimeMillis());
         state.executeUpdate();
+        ResultSet keys = state.getGeneratedKeys();
+        final int id = keys.next() ? keys.getInt(1) : -1;
         state.close();
 
-        if (!isBatch) notifyChangeListeners();
+        if (id != -1 && tags != null) {
+            final Set<String> tagSet = new HashSet<>(Arrays.asList(imgTagsStringToArray(tags.toLowerCase())));
+            state = connection.prepareStatement("INSERT INTO image_tags (img_id, tag_id) VALUES (?, ?)");
+            for (String tag : tagSet) {
+                state.setInt(1, id);
+                state.setInt(2, getTagId(tag, true));
+                state.addBatch();
+            }
+            state.executeBatch();
+            state.close();
+
+            tagSet.forEach(tag -> adjustTagCount(tag, 1));
+        }
+
+        if (!isBatch && id != -1) {
+            DatabaseChange change = new DatabaseChange();
+            change.addAdded(id);
+            notifyChangeListeners(change);
+        }
     }
 
     public synchronized void addImage(String path) throws SQLException {
         addImage(path, null, " tagme ", false);
     }
 
+    /**
+     * Adds many files in one pass. A single reused INSERT with an anti-join against existing paths is executed with
+     * JDBC batching, and every batch of {@link #getImportBatchSize()} files is tagged and committed in one transaction.
+     */
     public synchronized void addBatchImages(Iterable<File> files) throws SQLException {
-        for (File file : files) {
-            addImage(file.getAbsolutePath(), null, " tagme ", true);
+        final long start = System.currentTimeMillis();
+        final DatabaseChange change = new DatabaseChange();
+        int staged = 0, added = 0;
+
+        connection.setAutoCommit(false);
+        try (PreparedStatement insertImgs = connection.prepareStatement("INSERT INTO imgs (img_path, img_added) SELECT ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM imgs WHERE img_path=?);");
+             PreparedStatement insertTags = connection.prepareStatement("INSERT INTO image_tags (img_id, tag_id) SELECT img_id, ? FROM imgs WHERE img_id>?;")) {
+            insertTags.setInt(1, getTagId("tagme", true));
+
+            int batch = 0;
+            for (File file : files) {
+                final String path = file.getAbsolutePath();
+                insertImgs.setNString(1, path);
+                insertImgs.setLong(2, System.currentTimeMillis());
+                insertImgs.setNString(3, path);
+                insertImgs.addBatch();
+                batch++;
+                staged++;
+
+                if (batch >= importBatchSize) {
+                    added += flushImportBatch(insertImgs, insertTags, change);
+                    batch = 0;
+                }
+            }
+            if (batch > 0) added += flushImportBatch(insertImgs, insertTags, change);
+        } catch (SQLException e) {
+            connection.rollback();
+            tagIds.clear();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+
+            //Batches committed before a failure are in the database, so listeners still have to hear about them
+            if (!change.isEmpty()) notifyChangeListeners(change);
         }
 
-        notifyChangeListeners();
+        final long time = Math.max(System.currentTimeMillis() - start, 1);
+        System.out.println("Imported " + added + " of " + staged + " files in " + time + "ms (" + (added * 1000L / time) + " rows/s)");
     }
 
-    public synchronized void addTag(Iterable<ImageInfo> imgs, String tag, boolean isBatch) throws SQLException {
-        PreparedStatement state = connection.prepareStatement("UPDATE imgs SET img_tags=? WHERE img_id=?;");
-        for (ImageInfo img : imgs) {
-            if (!Arrays.asList(img.getTags()).contains(tag)) {
-                img.addTag(tag);
-                state.setNString(1, imgTagsArrayToString(img.getTags()));
-                state.setInt(2, img.getId());
-                state.executeUpdate();
+    /**
+     * Executes and commits one batch of the import. The added ids are only put in the change once committed.
+     */
+    private int flushImportBatch(PreparedStatement insertImgs, PreparedStatement insertTags, DatabaseChange change) throws SQLException {
+        final int lastId = getMaxImageId();
+
+        int added = 0;
+        for (int count : insertImgs.executeBatch()) {
+            if (count > 0) added += count;
+        }
+
+        //Ids are handed out in increasing order by this connection, so every row past lastId is from this batch
+        final List<Integer> addedIds = new ArrayList<>(added);
+        if (added > 0) {
+            insertTags.setInt(2, lastId);
+            insertTags.executeUpdate();
+
+            try (PreparedStatement ids = connection.prepareStatement("SELECT img_id FROM imgs WHERE img_id>?;")) {
+                ids.setInt(1, lastId);
+                ResultSet rs = ids.executeQuery();
+                while (rs.next()) {
+                    addedIds.add(rs.getInt(1));
+                }
             }
         }
+
+        connection.commit();
+        addedIds.forEach(change::addAdded);
+        adjustTagCount("tagme", added);
+        return added;
+    }
+
+    private synchronized int getMaxImageId() throws SQLException {
+        Statement state = connection.createStatement();
+        ResultSet rs = state.executeQuery("SELECT COALESCE(MAX(img_id), 0) FROM imgs;");
+        final int max = rs.next() ? rs.getInt(1) : 0;
         state.close();
+        return max;
+    }
 
-        if (!isBatch) notifyChangeListeners();
+    public synchronized void addTag(Iterable<ImageInfo> imgs, String tag, boolean isBatch) throws SQLException {
+        editTags(imgs, Collections.singletonList(tag), Collections.emptyList(), isBatch);
     }
 
     public synchronized void removeTag(Iterable<ImageInfo> imgs, String tag, boolean isBatch) throws SQLException {
-        PreparedStatement state = connection.prepareStatement("UPDATE imgs SET img_tags=? WHERE img_id=?;");
-        for (ImageInfo img : imgs) {
-            if (Arrays.asList(img.getTags()).contains(tag)) {
-                img.removeTag(tag);
-                state.setNString(1, imgTagsArrayToString(img.getTags()));
-                state.setInt(2, img.getId());
-                state.executeUpdate();
+        editTags(imgs, Collections.emptyList(), Collections.singletonList(tag), isBatch);
+    }
+
+    /**
+     * Adds and removes tags on a set of images in a single transaction. Tags present in both lists are added.
+     *
+     * @param imgs    Images to edit
+     * @param add     Tags to add to every image
+     * @param remove  Tags to remove from every image
+     * @param isBatch Skip notifying change listeners
+     */
+    public synchronized void editTags(Iterable<ImageInfo> imgs, Collection<String> add, Collection<String> remove, boolean isBatch) throws SQLException {
+        final Set<String> addSet = new LinkedHashSet<>();
+        final Set<String> removeSet = new LinkedHashSet<>();
+        add.forEach(tag -> addSet.add(tag.toLowerCase()));
+        remove.forEach(tag -> removeSet.add(tag.toLowerCase()));
+        removeSet.removeAll(addSet);
+
+        final Map<Integer, ImageInfo> targets = new LinkedHashMap<>();
+        imgs.forEach(img -> targets.put(img.getId(), img));
+        if (targets.isEmpty() || (addSet.isEmpty() && removeSet.isEmpty())) return;
+
+        final DatabaseChange change = new DatabaseChange();
+
+        connection.setAutoCommit(false);
+        try {
+            final ArrayList<Integer> addIds = new ArrayList<>();
+            final ArrayList<Integer> removeIds = new ArrayList<>();
+            for (String tag : addSet) addIds.add(getTagId(tag, true));
+            for (String tag : new ArrayList<>(removeSet)) {
+                final int tagId = getTagId(tag, false);
+                if (tagId != -1) removeIds.add(tagId);
+                else removeSet.remove(tag);
+            }
+
+            //Update counts of each batch entry tell which rows actually changed
+            final Map<String, Integer> deltas = new HashMap<>();
+            final List<Integer> imgIds = new ArrayList<>(targets.keySet());
+            if (!removeIds.isEmpty()) {
+                PreparedStatement state = connection.prepareStatement("DELETE FROM image_tags WHERE img_id=? AND tag_id=?;");
+                for (int imgId : targets.keySet()) {
+                    for (int tagId : removeIds) {
+                        state.setInt(1, imgId);
+                        state.setInt(2, tagId);
+                        state.addBatch();
+                    }
+                }
+                countBatchChanges(state.executeBatch(), imgIds, new ArrayList<>(removeSet), -1, deltas, change);
+                state.close();
+            }
+            if (!addIds.isEmpty()) {
+                PreparedStatement state = connection.prepareStatement("INSERT INTO image_tags (img_id, tag_id) SELECT ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM image_tags WHERE img_id=? AND tag_id=?);");
+                for (int imgId : targets.keySet()) {
+                    for (int tagId : addIds) {
+                        state.setInt(1, imgId);
+                        state.setInt(2, tagId);
+                        state.setInt(3, imgId);
+                        state.setInt(4, tagId);
+                        state.addBatch();
+                    }
+                }
+                countBatchChanges(state.executeBatch(), imgIds, new ArrayList<>(addSet), 1, deltas, change);
+                state.close();
             }
+
+            connection.commit();
+            deltas.forEach(this::adjustTagCount);
+        } catch (SQLException e) {
+            connection.rollback();
+            tagIds.clear();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
         }
-        state.close();
 
-        if (!isBatch) notifyChangeListeners();
+        for (ImageInfo img : targets.values()) {
+            img.editTags(addSet, removeSet);
+        }
+
+        if (!isBatch && !change.isEmpty()) notifyChangeListeners(change);
+    }
+
+    public Map<String, Integer> getTags() {
+        synchronized (tagCounts) {
+            return new HashMap<>(tagCounts);
+        }
     }
 
-    public synchronized Map<String, Integer> getTags() throws SQLException {
+    /**
+     * @return The number of images using each of the given tags. Unused tags are omitted.
+     */
+    public Map<String, Integer> getTagCounts(Collection<String> tags) {
         Map<String, Integer> map = new HashMap<>();
+        synchronized (tagCounts) {
+            for (String tag : tags) {
+                Integer count = tagCounts.get(tag.toLowerCase());
+                if (count != null) map.put(tag, count);
+            }
+        }
+        return map;
+    }
 
+    private synchronized void loadTagCounts() throws SQLException {
+        final HashMap<String, Integer> counts = new HashMap<>();
         Statement s = connection.createStatement();
-        ResultSet rs = s.executeQuery("SELECT imgs.img_tags FROM imgs");
+        ResultSet rs = s.executeQuery("SELECT tags.tag_name, count(image_tags.img_id) FROM tags JOIN image_tags ON image_tags.tag_id=tags.tag_id GROUP BY tags.tag_id");
         while (rs.next()) {
-            String[] tags = imgTagsStringToArray(rs.getNString(1));
-            for (String tag : tags) {
-                if (map.containsKey(tag)) {
-                    map.put(tag, map.get(tag) + 1);
-                } else {
-                    map.put(tag, 1);
+            counts.put(rs.getNString(1), rs.getInt(2));
+        }
+        s.close();
+
+        synchronized (tagCounts) {
+            tagCounts.clear();
+            tagCounts.putAll(counts);
+        }
+    }
+
+    private void adjustTagCount(String tag, int delta) {
+        if (delta == 0) return;
+
+        synchronized (tagCounts) {
+            final int count = tagCounts.getOrDefault(tag, 0) + delta;
+            if (count > 0) tagCounts.put(tag, count);
+            else tagCounts.remove(tag);
+        }
+    }
+
+    /**
+     * Sums the rows changed per tag by a batch that was built as every image crossed with every tag, and records which
+     * images were changed.
+     */
+    private static void countBatchChanges(int[] counts, List<Integer> imgIds, List<String> tags, int sign, Map<String, Integer> deltas, DatabaseChange change) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                deltas.merge(tags.get(i % tags.size()), sign * counts[i], Integer::sum);
+                change.addUpdated(imgIds.get(i / tags.size()), DatabaseChange.Field.TAGS);
+            }
+        }
+    }
+
+    /**
+     * Looks up the id of a tag in the tags dictionary table.
+     *
+     * @param tag    Lowercase tag name
+     * @param create Insert the tag into the dictionary if it doesn't exist yet
+     * @return The id of the tag, or -1 if it doesn't exist and create is false
+     */
+    private synchronized int getTagId(String tag, boolean create) throws SQLException {
+        int id = findTagId(connection, tag);
+        if (id != -1 || !create) return id;
+
+        PreparedStatement state = connection.prepareStatement("INSERT INTO tags (tag_name) VALUES (?)", Statement.RETURN_GENERATED_KEYS);
+        state.setNString(1, tag);
+        state.executeUpdate();
+        ResultSet rs = state.getGeneratedKeys();
+        rs.next();
+        id = rs.getInt(1);
+        state.close();
+
+        tagIds.put(tag, id);
+        return id;
+    }
+
+    /**
+     * Looks up the id of an existing tag without taking the writer lock.
+     *
+     * @param conn Connection to query on a cache miss
+     * @param tag  Lowercase tag name
+     * @return The id of the tag, or -1 if it isn't visible to the connection
+     */
+    private int findTagId(Connection conn, String tag) throws SQLException {
+        Integer id = tagIds.get(tag);
+        if (id != null) return id;
+
+        PreparedStatement state = conn.prepareStatement("SELECT tag_id FROM tags WHERE tag_name=?");
+        state.setNString(1, tag);
+        ResultSet rs = state.executeQuery();
+        final int found = rs.next() ? rs.getInt(1) : -1;
+        state.close();
+
+        if (found != -1) tagIds.put(tag, found);
+        return found;
+    }
+
+    /**
+     * Reads stored fingerprints. A fingerprint is left out if it was never stored, if it was stored before hashes were
+     * added, or if the file has changed size or modification time since it was computed.
+     *
+     * @return Fingerprints keyed by image id
+     */
+    public Map<Integer, Fingerprint> getFingerprints(Collection<ImageInfo> imgs) throws SQLException {
+        final Map<Integer, Fingerprint> results = new HashMap<>();
+
+        final Connection reader = readers.borrow();
+        try {
+            //Group the images with a valid stamp by the block holding their histogram
+            final Map<Integer, FileStamp> stamps = new HashMap<>();
+            final Map<Integer, Long> hashes = new HashMap<>();
+            final Map<Integer, int[]> sizes = new HashMap<>();
+            final Map<Integer, List<Integer>> blocks = new HashMap<>();
+            PreparedStatement state = reader.prepareStatement("SELECT file_size, file_modified, dhash, width, height FROM img_fingerprints WHERE img_id=? AND dhash IS NOT NULL;");
+            for (ImageInfo img : imgs) {
+                state.setInt(1, img.getId());
+                ResultSet rs = state.executeQuery();
+                if (!rs.next()) continue;
+
+                final FileStamp stamp = new FileStamp(rs.getLong(1), rs.getLong(2));
+                if (stamp.matches(img.getPath())) {
+                    stamps.put(img.getId(), stamp);
+                    hashes.put(img.getId(), rs.getLong(3));
+                    sizes.put(img.getId(), new int[]{rs.getInt(4), rs.getInt(5)});
+                    blocks.computeIfAbsent(img.getId() / HISTOGRAM_BLOCK_SIZE, k -> new ArrayList<>()).add(img.getId());
+                }
+            }
+            state.close();
+
+            state = reader.prepareStatement("SELECT data FROM histogram_blocks WHERE block_id=?;");
+            for (Map.Entry<Integer, List<Integer>> block : blocks.entrySet()) {
+                state.setInt(1, block.getKey());
+                ResultSet rs = state.executeQuery();
+                if (!rs.next()) continue;
+
+                final ByteBuffer data = ByteBuffer.wrap(rs.getBytes(1));
+                for (int id : block.getValue()) {
+                    final ImageHistogram histogram = readHistogramSlot(data, id);
+                    if (histogram != null) results.put(id, new Fingerprint(stamps.get(id), histogram, hashes.get(id), sizes.get(id)[0], sizes.get(id)[1]));
                 }
             }
+            state.close();
+        } finally {
+            readers.release(reader);
         }
 
-        return map;
+        return results;
+    }
+
+    /**
+     * Streams every stored histogram to a consumer in a single pass over the histogram blocks, without checking whether
+     * the files have changed since. Only one block is held in memory at a time, so the whole library can be visited
+     * without keeping every histogram.
+     *
+     * @param consumer Receives each histogram with its image id, in id order
+     */
+    public void forEachHistogram(ObjIntConsumer<ImageHistogram> consumer) throws SQLException {
+        final long start = System.currentTimeMillis();
+        int count = 0;
+
+        final Connection reader = readers.borrow();
+        try {
+            //Slots of deleted images are never cleared, only ids that still have a stamp are valid
+            final BitSet stamped = new BitSet();
+            Statement state = reader.createStatement();
+            ResultSet rs = state.executeQuery("SELECT img_id FROM img_fingerprints;");
+            while (rs.next()) {
+                stamped.set(rs.getInt(1));
+            }
+
+            rs = state.executeQuery("SELECT block_id, data FROM histogram_blocks ORDER BY block_id;");
+            while (rs.next()) {
+                final int first = rs.getInt(1) * HISTOGRAM_BLOCK_SIZE;
+                final ByteBuffer data = ByteBuffer.wrap(rs.getBytes(2));
+                for (int id = first; id < first + HISTOGRAM_BLOCK_SIZE; id++) {
+                    if (!stamped.get(id)) continue;
+                    final ImageHistogram histogram = readHistogramSlot(data, id);
+                    if (histogram != null) {
+                        consumer.accept(histogram, id);
+                        count++;
+                    }
+                }
+            }
+            state.close();
+        } finally {
+            readers.release(reader);
+        }
+
+        System.out.println("Read " + count + " histograms in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Reads the stored histograms of some images, without checking whether the files have changed since.
+     *
+     * @return Histograms keyed by image id
+     */
+    public Map<Integer, ImageHistogram> getStoredHistograms(Collection<Integer> ids) throws SQLException {
+        final Map<Integer, ImageHistogram> results = new HashMap<>();
+
+        final Map<Integer, List<Integer>> blocks = new HashMap<>();
+        ids.forEach(id -> blocks.computeIfAbsent(id / HISTOGRAM_BLOCK_SIZE, k -> new ArrayList<>()).add(id));
+
+        final Connection reader = readers.borrow();
+        try {
+            PreparedStatement stamped = reader.prepareStatement("SELECT img_id FROM img_fingerprints WHERE img_id=?;");
+            PreparedStatement state = reader.prepareStatement("SELECT data FROM histogram_blocks WHERE block_id=?;");
+            for (Map.Entry<Integer, List<Integer>> block : blocks.entrySet()) {
+                state.setInt(1, block.getKey());
+                ResultSet rs = state.executeQuery();
+                if (!rs.next()) continue;
+
+                final ByteBuffer data = ByteBuffer.wrap(rs.getBytes(1));
+                for (int id : block.getValue()) {
+                    stamped.setInt(1, id);
+                    if (!stamped.executeQuery().next()) continue;
+                    final ImageHistogram histogram = readHistogramSlot(data, id);
+                    if (histogram != null) results.put(id, histogram);
+                }
+            }
+            stamped.close();
+            state.close();
+        } finally {
+            readers.release(reader);
+        }
+
+        return results;
+    }
+
+    /**
+     * Reads the file size and full image size recorded when images were fingerprinted, without checking whether the
+     * files have changed since. Images that were never fingerprinted are left out.
+     *
+     * @return Metadata keyed by image id
+     */
+    public Map<Integer, ImageMetadata> getImageMetadata(Collection<Integer> ids) throws SQLException {
+        final Map<Integer, ImageMetadata> results = new HashMap<>();
+
+        final Connection reader = readers.borrow();
+        try {
+            PreparedStatement state = reader.prepareStatement("SELECT file_size, width, height FROM img_fingerprints WHERE img_id=?;");
+            for (int id : ids) {
+                state.setInt(1, id);
+                ResultSet rs = state.executeQuery();
+                if (rs.next()) results.put(id, new ImageMetadata(rs.getLong(1), rs.getInt(2), rs.getInt(3)));
+            }
+            state.close();
+        } finally {
+            readers.release(reader);
+        }
+
+        return results;
+    }
+
+    public void setFingerprint(ImageInfo img, Fingerprint fingerprint) throws SQLException {
+        setFingerprints(Collections.singletonMap(img.getId(), fingerprint));
+    }
+
+    /**
+     * Stores many fingerprints in one transaction. Every histogram block is rewritten once no matter how many of its
+     * slots change, so storing fingerprints in bulk is much cheaper than one at a time.
+     *
+     * @param fingerprints Fingerprints keyed by image id
+     */
+    public synchronized void setFingerprints(Map<Integer, Fingerprint> fingerprints) throws SQLException {
+        if (fingerprints.isEmpty()) return;
+
+        connection.setAutoCommit(false);
+        try {
+            final Map<Integer, ImageHistogram> histograms = new HashMap<>();
+            PreparedStatement state = connection.prepareStatement("MERGE INTO img_fingerprints (img_id, file_size, file_modified, dhash, width, height) KEY(img_id) VALUES (?, ?, ?, ?, ?, ?);");
+            for (Map.Entry<Integer, Fingerprint> entry : fingerprints.entrySet()) {
+                final Fingerprint fingerprint = entry.getValue();
+                state.setInt(1, entry.getKey());
+                state.setLong(2, fingerprint.getStamp().getSize());
+                state.setLong(3, fingerprint.getStamp().getModified());
+                state.setLong(4, fingerprint.getHash());
+                state.setInt(5, fingerprint.getWidth());
+                state.setInt(6, fingerprint.getHeight());
+                state.addBatch();
+                histograms.put(entry.getKey(), fingerprint.getHistogram());
+            }
+            state.executeBatch();
+            state.close();
+
+            writeHistogramBlocks(histograms);
+            connection.commit();
+            fingerprintRevision++;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Writes histograms into their slots, rewriting each affected block once. Must be called inside a transaction.
+     */
+    private synchronized void writeHistogramBlocks(Map<Integer, ImageHistogram> histograms) throws SQLException {
+        final Map<Integer, List<Integer>> blocks = new HashMap<>();
+        histograms.keySet().forEach(id -> blocks.computeIfAbsent(id / HISTOGRAM_BLOCK_SIZE, k -> new ArrayList<>()).add(id));
+
+        PreparedStatement select = connection.prepareStatement("SELECT data FROM histogram_blocks WHERE block_id=?;");
+        PreparedStatement merge = connection.prepareStatement("MERGE INTO histogram_blocks (block_id, data) KEY(block_id) VALUES (?, ?);");
+        for (Map.Entry<Integer, List<Integer>> block : blocks.entrySet()) {
+            select.setInt(1, block.getKey());
+            ResultSet rs = select.executeQuery();
+            final byte[] data = rs.next() ? rs.getBytes(1) : new byte[HISTOGRAM_BLOCK_SIZE * ImageHistogram.BYTES];
+
+            for (int id : block.getValue()) {
+                final byte[] bytes = histograms.get(id).toBytes();
+                System.arraycopy(bytes, 0, data, (id % HISTOGRAM_BLOCK_SIZE) * ImageHistogram.BYTES, bytes.length);
+            }
+
+            merge.setInt(1, block.getKey());
+            merge.setBytes(2, data);
+            merge.addBatch();
+        }
+        merge.executeBatch();
+        select.close();
+        merge.close();
+    }
+
+    /**
+     * @return The histogram in an image's slot of a block, or null if the slot is empty or unreadable
+     */
+    private static ImageHistogram readHistogramSlot(ByteBuffer block, int id) {
+        final int offset = (id % HISTOGRAM_BLOCK_SIZE) * ImageHistogram.BYTES;
+        if (offset >= block.capacity() || block.get(offset) == 0) return null;
+
+        block.position(offset);
+        try {
+            return ImageHistogram.fromBytes(block);
+        } catch (HistogramReadException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the stored perceptual hashes of images up to an id, without checking whether the files have changed since.
+     *
+     * @return Hashes keyed by image id, in id order
+     */
+    public Map<Integer, Long> getHashes(int maxImgId) throws SQLException {
+        final Map<Integer, Long> results = new LinkedHashMap<>();
+
+        final Connection reader = readers.borrow();
+        try {
+            PreparedStatement state = reader.prepareStatement("SELECT img_id, dhash FROM img_fingerprints WHERE img_id<=? AND dhash IS NOT NULL ORDER BY img_id;");
+            state.setInt(1, maxImgId);
+            ResultSet rs = state.executeQuery();
+            while (rs.next()) {
+                results.put(rs.getInt(1), rs.getLong(2));
+            }
+            state.close();
+        } finally {
+            readers.release(reader);
+        }
+
+        return results;
+    }
+
+    /**
+     * @return A number that changes every time stored fingerprints are written or cleared
+     */
+    public int getFingerprintRevision() {
+        return fingerprintRevision;
+    }
+
+    /**
+     * @return Id of the last image compared by the duplicate scan, or 0 if nothing has been scanned
+     */
+    public int getDuplicateScanPosition() throws SQLException {
+        return getDuplicateScanColumn("last_img_id", 0);
+    }
+
+    /**
+     * @return Largest hash distance the stored duplicate pairs were found with, or -1 if nothing has been scanned
+     */
+    public int getDuplicateScanDistance() throws SQLException {
+        return getDuplicateScanColumn("max_distance", -1);
+    }
+
+    private int getDuplicateScanColumn(String column, int fallback) throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            Statement state = reader.createStatement();
+            ResultSet rs = state.executeQuery("SELECT " + column + " FROM duplicate_scan WHERE scan_id=0;");
+            final int result = rs.next() ? rs.getInt(1) : fallback;
+            state.close();
+            return result;
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    /**
+     * Starts the duplicate scan over from the first image with a new distance. Pairs that were dismissed are kept.
+     */
+    public synchronized void resetDuplicateScan(int maxDistance) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            Statement state = connection.createStatement();
+            state.executeUpdate("DELETE FROM duplicate_pairs WHERE NOT dismissed;");
+            state.executeUpdate("DELETE FROM duplicate_clusters;");
+            state.executeUpdate("MERGE INTO duplicate_scan (scan_id, last_img_id, max_distance) KEY(scan_id) VALUES (0, 0, " + maxDistance + ");");
+            state.close();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Stores the pairs found by one step of the duplicate scan and the position it reached, in one transaction, so an
+     * interrupted scan resumes after the last stored step. A pair that was already stored keeps its dismissed state.
+     * The clusters of the images in new pairs are merged.
+     */
+    public synchronized void addDuplicatePairs(Collection<DuplicateCandidate> pairs, int scannedUpTo, int maxDistance) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            PreparedStatement state = connection.prepareStatement("MERGE INTO duplicate_pairs (img1, img2, similarity) KEY(img1, img2) VALUES (?, ?, ?);");
+            for (DuplicateCandidate pair : pairs) {
+                state.setInt(1, pair.getImage1());
+                state.setInt(2, pair.getImage2());
+                state.setDouble(3, pair.getSimilarity());
+                state.addBatch();
+            }
+            state.executeBatch();
+            state.close();
+            mergeDuplicateClusters(pairs);
+
+            state = connection.prepareStatement("MERGE INTO duplicate_scan (scan_id, last_img_id, max_distance) KEY(scan_id) VALUES (0, ?, ?);");
+            state.setInt(1, scannedUpTo);
+            state.setInt(2, maxDistance);
+            state.executeUpdate();
+            state.close();
+
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Reads stored duplicate pairs that have not been dismissed, from most to least similar.
+     *
+     * @param limit Maximum number of pairs
+     * @param after Last pair of the previous page, or null for the first page
+     */
+    public List<SimilarPair> getDuplicatePairs(int limit, SimilarPair after) throws SQLException {
+        final List<SimilarPair> results = new ArrayList<>();
+
+        final Connection reader = readers.borrow();
+        try {
+            String query = "SELECT img1, img2, similarity FROM duplicate_pairs WHERE NOT dismissed";
+            if (after != null) query += " AND (similarity<? OR (similarity=? AND (img1>? OR (img1=? AND img2>?))))";
+            query += " ORDER BY similarity DESC, img1, img2 LIMIT ?;";
+
+            PreparedStatement state = reader.prepareStatement(query);
+            int i = 1;
+            if (after != null) {
+                final int img1 = Math.min(after.getImage1().getId(), after.getImage2().getId());
+                final int img2 = Math.max(after.getImage1().getId(), after.getImage2().getId());
+                state.setDouble(i++, after.getSimilarity());
+                state.setDouble(i++, after.getSimilarity());
+                state.setInt(i++, img1);
+                state.setInt(i++, img1);
+                state.setInt(i++, img2);
+            }
+            state.setInt(i, limit);
+
+            final List<DuplicateCandidate> pairs = new ArrayList<>();
+            final Set<Integer> ids = new HashSet<>();
+            ResultSet rs = state.executeQuery();
+            while (rs.next()) {
+                pairs.add(new DuplicateCandidate(rs.getInt(1), rs.getInt(2), rs.getDouble(3)));
+                ids.add(rs.getInt(1));
+                ids.add(rs.getInt(2));
+            }
+            state.close();
+
+            final Map<Integer, ImageInfo> imgs = getImagesById(reader, ids);
+            for (DuplicateCandidate pair : pairs) {
+                final ImageInfo img1 = imgs.get(pair.getImage1()), img2 = imgs.get(pair.getImage2());
+                if (img1 != null && img2 != null) results.add(new SimilarPair(img1, img2, pair.getSimilarity()));
+            }
+        } finally {
+            readers.release(reader);
+        }
+
+        return results;
+    }
+
+    /**
+     * @return Number of stored duplicate pairs that have not been dismissed
+     */
+    public int getNumDuplicatePairs() throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            Statement state = reader.createStatement();
+            ResultSet rs = state.executeQuery("SELECT count(*) FROM duplicate_pairs WHERE NOT dismissed;");
+            final int count = rs.next() ? rs.getInt(1) : 0;
+            state.close();
+            return count;
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    /**
+     * Marks a pair as not being duplicates, so it is no longer returned by {@link #getDuplicatePairs(int, SimilarPair)}
+     * and is not found again by later scans.
+     */
+    public void dismissDuplicatePair(ImageInfo img1, ImageInfo img2) throws SQLException {
+        dismissDuplicatePairs(Arrays.asList(img1, img2));
+    }
+
+    /**
+     * Marks every pair among some images as not being duplicates, and splits their clusters where they are no longer
+     * linked by a pair.
+     */
+    public synchronized void dismissDuplicatePairs(Collection<ImageInfo> imgs) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            final Set<Integer> clusters = getDuplicateClusterIds(imgs);
+
+            PreparedStatement state = connection.prepareStatement("UPDATE duplicate_pairs SET dismissed=TRUE WHERE img1=? AND img2=?;");
+            for (ImageInfo img1 : imgs) {
+                for (ImageInfo img2 : imgs) {
+                    if (img1.getId() >= img2.getId()) continue;
+                    state.setInt(1, img1.getId());
+                    state.setInt(2, img2.getId());
+                    state.addBatch();
+                }
+            }
+            state.executeBatch();
+            state.close();
+
+            rebuildDuplicateClusters(clusters);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Reads stored duplicate clusters with more than one image.
+     *
+     * @param limit Maximum number of clusters
+     * @param after Id of the last cluster of the previous page, or -1 for the first page
+     * @return Clusters in id order
+     */
+    public List<DuplicateCluster> getDuplicateClusters(int limit, int after) throws SQLException {
+        final List<DuplicateCluster> results = new ArrayList<>();
+
+        final Connection reader = readers.borrow();
+        try {
+            PreparedStatement state = reader.prepareStatement("SELECT cluster_id FROM duplicate_clusters WHERE cluster_id>? GROUP BY cluster_id HAVING count(*)>1 ORDER BY cluster_id LIMIT ?;");
+            state.setInt(1, after);
+            state.setInt(2, limit);
+            final List<Integer> clusters = new ArrayList<>();
+            ResultSet rs = state.executeQuery();
+            while (rs.next()) {
+                clusters.add(rs.getInt(1));
+            }
+            state.close();
+
+            PreparedStatement members = reader.prepareStatement("SELECT img_id FROM duplicate_clusters WHERE cluster_id=? ORDER BY img_id;");
+            PreparedStatement similarity = reader.prepareStatement("SELECT max(similarity) FROM duplicate_pairs WHERE img1 IN (SELECT img_id FROM duplicate_clusters WHERE cluster_id=?) AND NOT dismissed;");
+            for (int cluster : clusters) {
+                members.setInt(1, cluster);
+                final List<Integer> ids = new ArrayList<>();
+                rs = members.executeQuery();
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+
+                similarity.setInt(1, cluster);
+                rs = similarity.executeQuery();
+                final double best = rs.next() ? rs.getDouble(1) : 0;
+
+                final Map<Integer, ImageInfo> imgs = getImagesById(reader, ids);
+                final List<ImageInfo> found = new ArrayList<>();
+                ids.forEach(id -> {
+                    if (imgs.containsKey(id)) found.add(imgs.get(id));
+                });
+                results.add(new DuplicateCluster(cluster, found, best));
+            }
+            members.close();
+            similarity.close();
+        } finally {
+            readers.release(reader);
+        }
+
+        return results;
+    }
+
+    /**
+     * @return Number of stored duplicate clusters with more than one image
+     */
+    public int getNumDuplicateClusters() throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            Statement state = reader.createStatement();
+            ResultSet rs = state.executeQuery("SELECT count(*) FROM (SELECT cluster_id FROM duplicate_clusters GROUP BY cluster_id HAVING count(*)>1);");
+            final int count = rs.next() ? rs.getInt(1) : 0;
+            state.close();
+            return count;
+        } finally {
+            readers.release(reader);
+        }
+    }
+
+    /**
+     * @return Ids of the clusters that contain any of the images. Must be called by the writer.
+     */
+    private synchronized Set<Integer> getDuplicateClusterIds(Collection<ImageInfo> imgs) throws SQLException {
+        final Set<Integer> results = new HashSet<>();
+        PreparedStatement state = connection.prepareStatement("SELECT cluster_id FROM duplicate_clusters WHERE img_id=?;");
+        for (ImageInfo img : imgs) {
+            state.setInt(1, img.getId());
+            ResultSet rs = state.executeQuery();
+            if (rs.next()) results.add(rs.getInt(1));
+        }
+        state.close();
+        return results;
+    }
+
+    /**
+     * Links the images of new duplicate pairs into clusters. Clusters joined by a pair are merged by relabelling the
+     * images of the smaller ones, so only the clusters touched by the new pairs are updated. A cluster is labelled with
+     * the id of one of its images, which may since have been deleted. Must be called inside a transaction.
+     */
+    private synchronized void mergeDuplicateClusters(Collection<DuplicateCandidate> pairs) throws SQLException {
+        final Map<Integer, Integer> clusterOf = new HashMap<>();
+        final UnionFind sets = new UnionFind();
+
+        PreparedStatement find = connection.prepareStatement("SELECT cluster_id FROM duplicate_clusters WHERE img_id=?;");
+        PreparedStatement dismissed = connection.prepareStatement("SELECT dismissed FROM duplicate_pairs WHERE img1=? AND img2=?;");
+        for (DuplicateCandidate pair : pairs) {
+            dismissed.setInt(1, pair.getImage1());
+            dismissed.setInt(2, pair.getImage2());
+            ResultSet rs = dismissed.executeQuery();
+            if (rs.next() && rs.getBoolean(1)) continue;
+
+            for (int id : new int[]{pair.getImage1(), pair.getImage2()}) {
+                if (clusterOf.containsKey(id)) continue;
+                find.setInt(1, id);
+                rs = find.executeQuery();
+                //An image that isn't in a cluster yet starts one labelled with its own id
+                clusterOf.put(id, rs.next() ? rs.getInt(1) : id);
+            }
+            sets.union(clusterOf.get(pair.getImage1()), clusterOf.get(pair.getImage2()));
+        }
+        find.close();
+        dismissed.close();
+        if (clusterOf.isEmpty()) return;
+
+        //Keep the label of the largest cluster in each merged set
+        final Map<Integer, Integer> sizes = new HashMap<>();
+        PreparedStatement count = connection.prepareStatement("SELECT count(*) FROM duplicate_clusters WHERE cluster_id=?;");
+        for (int cluster : new HashSet<>(clusterOf.values())) {
+            count.setInt(1, cluster);
+            ResultSet rs = count.executeQuery();
+            sizes.put(cluster, rs.next() ? rs.getInt(1) : 0);
+        }
+        count.close();
+
+        final Map<Integer, Integer> labels = new HashMap<>();
+        for (int cluster : sizes.keySet()) {
+            labels.merge(sets.find(cluster), cluster, (a, b) -> sizes.get(a) >= sizes.get(b) ? a : b);
+        }
+
+        PreparedStatement relabel = connection.prepareStatement("UPDATE duplicate_clusters SET cluster_id=? WHERE cluster_id=?;");
+        for (int cluster : sizes.keySet()) {
+            final int label = labels.get(sets.find(cluster));
+            if (label == cluster || sizes.get(cluster) == 0) continue;
+            relabel.setInt(1, label);
+            relabel.setInt(2, cluster);
+            relabel.addBatch();
+        }
+        relabel.executeBatch();
+        relabel.close();
+
+        PreparedStatement insert = connection.prepareStatement("MERGE INTO duplicate_clusters (img_id, cluster_id) KEY(img_id) VALUES (?, ?);");
+        for (Map.Entry<Integer, Integer> entry : clusterOf.entrySet()) {
+            if (sizes.get(entry.getValue()) > 0) continue;
+            insert.setInt(1, entry.getKey());
+            insert.setInt(2, labels.get(sets.find(entry.getValue())));
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+    }
+
+    /**
+     * Regroups the images of some clusters by the pairs that still link them, after pairs were dismissed or images
+     * removed. Each group is labelled with its smallest image id, and images left on their own leave their cluster.
+     * Must be called inside a transaction.
+     */
+    private synchronized void rebuildDuplicateClusters(Collection<Integer> clusters) throws SQLException {
+        PreparedStatement members = connection.prepareStatement("SELECT img_id FROM duplicate_clusters WHERE cluster_id=?;");
+        PreparedStatement pairs = connection.prepareStatement("SELECT img1, img2 FROM duplicate_pairs WHERE img1 IN (SELECT img_id FROM duplicate_clusters WHERE cluster_id=?) AND NOT dismissed;");
+        PreparedStatement relabel = connection.prepareStatement("UPDATE duplicate_clusters SET cluster_id=? WHERE img_id=?;");
+        PreparedStatement remove = connection.prepareStatement("DELETE FROM duplicate_clusters WHERE img_id=?;");
+        for (int cluster : clusters) {
+            members.setInt(1, cluster);
+            final Set<Integer> ids = new HashSet<>();
+            ResultSet rs = members.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+
+            final UnionFind sets = new UnionFind();
+            pairs.setInt(1, cluster);
+            rs = pairs.executeQuery();
+            while (rs.next()) {
+                if (ids.contains(rs.getInt(1)) && ids.contains(rs.getInt(2))) sets.union(rs.getInt(1), rs.getInt(2));
+            }
+
+            final Set<Integer> grouped = new HashSet<>();
+            for (List<Integer> group : sets.getGroups()) {
+                final int label = Collections.min(group);
+                for (int id : group) {
+                    relabel.setInt(1, label);
+                    relabel.setInt(2, id);
+                    relabel.addBatch();
+                }
+                grouped.addAll(group);
+            }
+            for (int id : ids) {
+                if (grouped.contains(id)) continue;
+                remove.setInt(1, id);
+                remove.addBatch();
+            }
+        }
+        relabel.executeBatch();
+        remove.executeBatch();
+        members.close();
+        pairs.close();
+        relabel.close();
+        remove.close();
     }
 
     public static String imgTagsArrayToString(String[] tags) {
@@ -221,17 +1531,29 @@ public class DBInterface {
     }
 
     public static String[] imgTagsStringToArray(String img_tags) {
-        return img_tags.trim().split(" ");
+        if (img_tags == null || img_tags.trim().isEmpty()) return new String[0];
+        return img_tags.trim().split(" +");
+    }
+
+    public int getImportBatchSize() {
+        return importBatchSize;
+    }
+
+    public void setImportBatchSize(int importBatchSize) {
+        if (importBatchSize < 1) throw new IllegalArgumentException("Batch size must be positive: " + importBatchSize);
+        this.importBatchSize = importBatchSize;
     }
 
     public synchronized void disconnect() throws SQLException {
+        readers.close();
         connection.close();
     }
 
     public synchronized void cleanDB() throws SQLException {
         dropTables();
         verifyTables();
-        notifyChangeListeners();
+        fingerprintRevision++;
+        notifyChangeListeners(DatabaseChange.reset());
     }
 
     public synchronized boolean isConnected() {
@@ -243,53 +1565,77 @@ public class DBInterface {
         }
     }
 
-    public synchronized void addChangeListener(ImageDatabaseUpdateListener listener) {
+    public void addChangeListener(ImageDatabaseUpdateListener listener) {
         listeners.add(listener);
     }
 
-    public synchronized void removeChangeListener(ImageDatabaseUpdateListener listener) {
+    public void removeChangeListener(ImageDatabaseUpdateListener listener) {
         listeners.remove(listener);
     }
 
-    public synchronized void notifyChangeListeners() {
-        listeners.forEach(ImageDatabaseUpdateListener::databaseUpdated);
+    public void notifyChangeListeners(DatabaseChange change) {
+        listeners.forEach(listener -> listener.databaseUpdated(change));
     }
 
-    private synchronized ImageInfo getCachedImg(int id) {
-        ListIterator<SoftReference<ImageInfo>> iter = imgs.listIterator();
-        while (iter.hasNext()) {
-            ImageInfo info = iter.next().get();
-            if (info != null) {
-                if (info.getId() == id) {
-                    return info;
+    public ImageInfoCache getImageCache() {
+        return cache;
+    }
+
+    public synchronized void removeImgs(Iterable<ImageInfo> imgs) throws SQLException {
+        final Map<String, Integer> deltas = new HashMap<>();
+        final DatabaseChange change = new DatabaseChange();
+
+        final List<ImageInfo> removed = new ArrayList<>();
+        imgs.forEach(removed::add);
+
+        connection.setAutoCommit(false);
+        try {
+            final Set<Integer> clusters = getDuplicateClusterIds(removed);
+            PreparedStatement tags = connection.prepareStatement("SELECT tags.tag_name FROM image_tags JOIN tags ON tags.tag_id=image_tags.tag_id WHERE image_tags.img_id=?");
+            PreparedStatement state = connection.prepareStatement("DELETE FROM imgs WHERE img_id=?");
+            for (ImageInfo img : removed) {
+                tags.setInt(1, img.getId());
+                ResultSet rs = tags.executeQuery();
+                while (rs.next()) {
+                    deltas.merge(rs.getNString(1), -1, Integer::sum);
                 }
-            } else {
-                iter.remove();
+
+                state.setInt(1, img.getId());
+                state.addBatch();
             }
-        }
+            state.executeBatch();
+            tags.close();
+            state.close();
 
-        return null;
-    }
+            //A removed image may have been the only link between parts of its cluster
+            rebuildDuplicateClusters(clusters);
+            connection.commit();
+            fingerprintRevision++;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
 
-    public synchronized void removeImgs(Iterable<ImageInfo> imgs) throws SQLException {
-        PreparedStatement state = connection.prepareStatement("DELETE FROM imgs WHERE img_id=?");
-        for (ImageInfo img : imgs) {
-            state.setInt(1, img.getId());
-            state.executeUpdate();
+        for (ImageInfo img : removed) {
+            cache.remove(img.getId());
+            change.addRemoved(img.getId());
         }
-        state.close();
-        notifyChangeListeners();
+        deltas.forEach(this::adjustTagCount);
+        notifyChangeListeners(change);
     }
 
-    public synchronized int getNumImages() throws SQLException {
-        Statement state = connection.createStatement();
-        ResultSet rs = state.executeQuery("SELECT count(img_id) AS count FROM imgs;");
-        if (rs.next()) {
-            int count = rs.getInt("count");
+    public int getNumImages() throws SQLException {
+        final Connection reader = readers.borrow();
+        try {
+            Statement state = reader.createStatement();
+            ResultSet rs = state.executeQuery("SELECT count(img_id) AS count FROM imgs;");
+            final int count = rs.next() ? rs.getInt("count") : 0;
             state.close();
             return count;
-        } else {
-            return 0;
+        } finally {
+            readers.release(reader);
         }
     }
 
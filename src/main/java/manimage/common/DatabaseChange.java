@@ -0,0 +1,99 @@
+package manimage.common;
+
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes one or more mutations of the image database: which images were added, removed or updated, and which fields
+ * of the updated images changed. A reset means anything may have changed and listeners should reload everything.
+ */
+public class DatabaseChange {
+
+    public enum Field {
+        PATH, SOURCE, TAGS
+    }
+
+    private final Set<Integer> added = new HashSet<>();
+    private final Set<Integer> removed = new HashSet<>();
+    private final Set<Integer> updated = new HashSet<>();
+    private final EnumSet<Field> changedFields = EnumSet.noneOf(Field.class);
+    private boolean reset = false;
+
+
+    public DatabaseChange() {
+
+    }
+
+    static DatabaseChange reset() {
+        DatabaseChange change = new DatabaseChange();
+        change.reset = true;
+        return change;
+    }
+
+    //------------------------ Getters ---------------------------------------------------------------------------------
+
+    public Set<Integer> getAdded() {
+        return Collections.unmodifiableSet(added);
+    }
+
+    public Set<Integer> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    public Set<Integer> getUpdated() {
+        return Collections.unmodifiableSet(updated);
+    }
+
+    public Set<Field> getChangedFields() {
+        return Collections.unmodifiableSet(changedFields);
+    }
+
+    //---------------------- Checkers ----------------------------------------------------------------------------------
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public boolean isEmpty() {
+        return !reset && added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+    }
+
+    public boolean hasChanged(Field field) {
+        return changedFields.contains(field);
+    }
+
+    //------------------ Operators -------------------------------------------------------------------------------------
+
+    void addAdded(int id) {
+        added.add(id);
+    }
+
+    void addRemoved(int id) {
+        if (!added.remove(id)) removed.add(id);
+        updated.remove(id);
+    }
+
+    void addUpdated(int id, Field field) {
+        if (!added.contains(id)) updated.add(id);
+        changedFields.add(field);
+    }
+
+    /**
+     * Folds a later change into this one. An image that was added and then removed disappears from both sets, and
+     * updates to an image that is still new are absorbed into its addition.
+     */
+    public void merge(DatabaseChange later) {
+        if (later.reset) reset = true;
+
+        later.added.forEach(this::addAdded);
+        later.removed.forEach(this::addRemoved);
+        for (int id : later.updated) {
+            if (!added.contains(id)) updated.add(id);
+        }
+        changedFields.addAll(later.changedFields);
+    }
+
+}
@@ -0,0 +1,31 @@
+package manimage.common;
+
+
+/**
+ * Two image ids found to be similar by a duplicate scan, always with the smaller id first.
+ */
+public final class DuplicateCandidate {
+
+    private final int img1, img2;
+    private final double similarity;
+
+
+    public DuplicateCandidate(int img1, int img2, double similarity) {
+        this.img1 = Math.min(img1, img2);
+        this.img2 = Math.max(img1, img2);
+        this.similarity = similarity;
+    }
+
+    public int getImage1() {
+        return img1;
+    }
+
+    public int getImage2() {
+        return img2;
+    }
+
+    public double getSimilarity() {
+        return similarity;
+    }
+
+}
@@ -0,0 +1,74 @@
+package manimage.common;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A group of images joined by duplicate pairs. Every image is similar to at least one other image in the group, but not
+ * necessarily to all of them.
+ */
+public class DuplicateCluster {
+
+    private final int id;
+    private final List<ImageInfo> imgs;
+    private final double similarity;
+
+
+    /**
+     * @param id         Id of the stored cluster, or -1 if it was grouped in memory
+     * @param similarity Similarity of the most similar pair in the cluster
+     */
+    public DuplicateCluster(int id, List<ImageInfo> imgs, double similarity) {
+        this.id = id;
+        this.imgs = imgs;
+        this.similarity = similarity;
+    }
+
+    /**
+     * Groups pairs into clusters of images that are linked by a chain of pairs.
+     *
+     * @return Clusters from the one with the most similar pair to the one with the least
+     */
+    public static List<DuplicateCluster> group(List<SimilarPair> pairs) {
+        final Map<Integer, ImageInfo> imgs = new HashMap<>();
+        final UnionFind sets = new UnionFind();
+        for (SimilarPair pair : pairs) {
+            imgs.put(pair.getImage1().getId(), pair.getImage1());
+            imgs.put(pair.getImage2().getId(), pair.getImage2());
+            sets.union(pair.getImage1().getId(), pair.getImage2().getId());
+        }
+
+        final Map<Integer, Double> best = new HashMap<>();
+        for (SimilarPair pair : pairs) {
+            best.merge(sets.find(pair.getImage1().getId()), pair.getSimilarity(), Math::max);
+        }
+
+        final List<DuplicateCluster> results = new ArrayList<>();
+        for (List<Integer> group : sets.getGroups()) {
+            Collections.sort(group);
+            final List<ImageInfo> members = new ArrayList<>();
+            group.forEach(id -> members.add(imgs.get(id)));
+            results.add(new DuplicateCluster(-1, members, best.get(sets.find(group.get(0)))));
+        }
+        results.sort(Comparator.comparingDouble(DuplicateCluster::getSimilarity).reversed());
+        return results;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public List<ImageInfo> getImages() {
+        return imgs;
+    }
+
+    public double getSimilarity() {
+        return similarity;
+    }
+
+}
@@ -0,0 +1,213 @@
+package manimage.common;
+
+
+import manimage.main.Main;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds duplicate images across the whole library in the background and stores them as duplicate pairs. Images are
+ * scanned in id order, and each scan only compares the images added since the previous one against everything scanned
+ * before. The position is stored along with each batch of results, so a scan that was interrupted by closing the app
+ * picks up where it left off.
+ */
+public class DuplicateScanner {
+
+    /**
+     * Default similarity at which images count as duplicates, a hash distance of 8 bits.
+     */
+    public static final double DEFAULT_THRESHOLD = 0.875;
+
+    private static final int BATCH_SIZE = 500;
+
+    private final DBInterface db;
+    private final FingerprintService fingerprints;
+
+    private final ExecutorService executor;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    private volatile int maxDistance;
+
+
+    public DuplicateScanner(DBInterface db, FingerprintService fingerprints, int maxDistance) {
+        this.db = db;
+        this.fingerprints = fingerprints;
+        this.maxDistance = maxDistance;
+
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Duplicate Scanner");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sets the largest hash distance at which images count as duplicates. Takes effect on the next scan, which starts
+     * over from the first image if the distance changed.
+     */
+    public void setMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * Scans any images that have not been scanned yet. Does nothing if a scan is already waiting to start, since that
+     * scan will include everything added before it starts.
+     */
+    public void scan() {
+        if (queued.compareAndSet(false, true)) executor.submit(this::run);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        queued.set(false);
+        final int distance = maxDistance;
+
+        try {
+            int position = db.getDuplicateScanPosition();
+            if (db.getDuplicateScanDistance() != distance) {
+                System.out.println("Restarting duplicate scan with distance " + distance);
+                db.resetDuplicateScan(distance);
+                position = 0;
+            }
+
+            //Hashes of every image scanned so far, new images are compared against these and each other
+            final Map<Integer, Long> scanned = db.getHashes(position);
+            final long[] scannedHashes = new long[scanned.size()];
+            final int[] scannedIds = new int[scanned.size()];
+            int count = 0;
+            for (Map.Entry<Integer, Long> entry : scanned.entrySet()) {
+                scannedIds[count] = entry.getKey();
+                scannedHashes[count] = entry.getValue();
+                count++;
+            }
+            final CorpusIndex corpus = new CorpusIndex(distance);
+            corpus.add(scannedHashes, scannedIds);
+
+            final long start = System.currentTimeMillis();
+            int scannedImages = 0, found = 0;
+            List<ImageInfo> batch;
+            while (!(batch = db.getImagesAfter(position, BATCH_SIZE)).isEmpty()) {
+                if (Thread.interrupted()) return;
+
+                final List<ImageInfo> imgs = new ArrayList<>(batch);
+                imgs.removeIf(img -> !isScannable(img));
+                //The position stored with this batch's pairs means a resumed scan reads these hashes back from the
+                //database, so they have to be stored before it is
+                final Map<Integer, Fingerprint> prints = fingerprints.getFingerprints(imgs, true).get();
+
+                long[] hashes = new long[imgs.size()];
+                int[] ids = new int[imgs.size()];
+                count = 0;
+                for (ImageInfo img : imgs) {
+                    final Fingerprint print = prints.get(img.getId());
+                    if (print == null) continue;
+                    ids[count] = img.getId();
+                    hashes[count] = print.getHash();
+                    count++;
+                }
+                hashes = Arrays.copyOf(hashes, count);
+                ids = Arrays.copyOf(ids, count);
+
+                //Pair each new image with the corpus scanned before it and with the rest of its own batch
+                final List<DuplicateCandidate> pairs = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    final int id = ids[i];
+                    corpus.search(hashes[i], (other, d) -> pairs.add(new DuplicateCandidate(Math.min(other, id), Math.max(other, id), ImageHash.getSimilarity(d))));
+                }
+                new HashIndex(hashes, ids, distance).findPairs(distance, (id1, id2, d) -> pairs.add(new DuplicateCandidate(Math.min(id1, id2), Math.max(id1, id2), ImageHash.getSimilarity(d))));
+                corpus.add(hashes, ids);
+
+                position = batch.get(batch.size() - 1).getId();
+                db.addDuplicatePairs(pairs, position, distance);
+                scannedImages += batch.size();
+                found += pairs.size();
+                System.out.println("Duplicate scan reached image " + position + ", " + found + " new pairs so far");
+
+                if (maxDistance != distance) {
+                    scan();
+                    return;
+                }
+            }
+
+            if (scannedImages > 0) System.out.println("Scanned " + scannedImages + " images for duplicates in " + (System.currentTimeMillis() - start) + "ms, found " + found + " pairs");
+        } catch (SQLException | ExecutionException e) {
+            Main.showDatabaseError("Error scanning for duplicates", e);
+        } catch (InterruptedException e) {
+            //Shutting down, the scan resumes from the last stored batch next time
+        }
+    }
+
+    /**
+     * Hashes of every image scanned so far, kept as a few immutable {@link HashIndex} segments. New batches become
+     * segments of their own, and segments of similar size are merged, so each hash is only re-indexed a logarithmic
+     * number of times as the corpus grows instead of the whole corpus being indexed again for every batch.
+     */
+    private static class CorpusIndex {
+
+        private final int maxDistance;
+        private final List<Segment> segments = new ArrayList<>();
+
+
+        private CorpusIndex(int maxDistance) {
+            this.maxDistance = maxDistance;
+        }
+
+        private void add(long[] hashes, int[] ids) {
+            if (hashes.length == 0) return;
+
+            Segment segment = new Segment(hashes, ids);
+            while (!segments.isEmpty() && segments.get(segments.size() - 1).hashes.length <= segment.hashes.length) {
+                final Segment previous = segments.remove(segments.size() - 1);
+                final long[] mergedHashes = Arrays.copyOf(previous.hashes, previous.hashes.length + segment.hashes.length);
+                final int[] mergedIds = Arrays.copyOf(previous.ids, mergedHashes.length);
+                System.arraycopy(segment.hashes, 0, mergedHashes, previous.hashes.length, segment.hashes.length);
+                System.arraycopy(segment.ids, 0, mergedIds, previous.ids.length, segment.ids.length);
+                segment = new Segment(mergedHashes, mergedIds);
+            }
+            segment.index = new HashIndex(segment.hashes, segment.ids, maxDistance);
+            segments.add(segment);
+        }
+
+        private void search(long hash, HashIndex.MatchConsumer consumer) {
+            for (Segment segment : segments) {
+                segment.index.search(hash, maxDistance, consumer);
+            }
+        }
+
+        private static class Segment {
+
+            private final long[] hashes;
+            private final int[] ids;
+            private HashIndex index;
+
+
+            private Segment(long[] hashes, int[] ids) {
+                this.hashes = hashes;
+                this.ids = ids;
+            }
+
+        }
+
+    }
+
+    private static boolean isScannable(ImageInfo img) {
+        //Animated gifs don't compare well by their first frame
+        return img.getPath() != null && Main.IMAGE_FILTER.accept(img.getPath()) && !img.getPath().getName().toLowerCase().endsWith(".gif");
+    }
+
+}
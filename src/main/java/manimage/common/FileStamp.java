@@ -0,0 +1,40 @@
+package manimage.common;
+
+
+import java.io.File;
+
+/**
+ * Size and modification time of a file at some point in time, used to tell whether data derived from the file is
+ * still current.
+ */
+public final class FileStamp {
+
+    private final long size;
+    private final long modified;
+
+
+    public FileStamp(long size, long modified) {
+        this.size = size;
+        this.modified = modified;
+    }
+
+    public static FileStamp of(File file) {
+        return new FileStamp(file.length(), file.lastModified());
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * @return True if the file still has the stamped size and modification time
+     */
+    public boolean matches(File file) {
+        return file.length() == size && file.lastModified() == modified;
+    }
+
+}
@@ -0,0 +1,56 @@
+package manimage.common;
+
+
+/**
+ * Histogram, perceptual hash and full size of an image file, with the stamp the file had before it was decoded.
+ */
+public final class Fingerprint {
+
+    private final FileStamp stamp;
+    private final ImageHistogram histogram;
+    private final long hash;
+    private final int width, height;
+
+
+    public Fingerprint(FileStamp stamp, ImageHistogram histogram, long hash) {
+        this(stamp, histogram, hash, 0, 0);
+    }
+
+    public Fingerprint(FileStamp stamp, ImageHistogram histogram, long hash, int width, int height) {
+        this.stamp = stamp;
+        this.histogram = histogram;
+        this.hash = hash;
+        this.width = width;
+        this.height = height;
+    }
+
+    public FileStamp getStamp() {
+        return stamp;
+    }
+
+    public ImageHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return 64 bit difference hash, see {@link ImageHash}
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return Width of the full size image, or 0 if unknown
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height of the full size image, or 0 if unknown
+     */
+    public int getHeight() {
+        return height;
+    }
+
+}
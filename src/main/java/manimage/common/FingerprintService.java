@@ -0,0 +1,110 @@
+package manimage.common;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gets image fingerprints without blocking the caller. Stored fingerprints are read from the database, and the rest
+ * are decoded from their files on a fixed pool with one thread per core. Only the images being decoded are held in
+ * memory at once, however many are requested. Newly computed fingerprints are stored for next time.
+ */
+public class FingerprintService {
+
+    private final AsyncDBInterface db;
+    private final ExecutorService decodeExecutor;
+
+
+    public FingerprintService(AsyncDBInterface db) {
+        this(db, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FingerprintService(AsyncDBInterface db, int threads) {
+        this.db = db;
+
+        final AtomicInteger count = new AtomicInteger();
+        decodeExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Fingerprint Decoder " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Gets the fingerprint of every image. Images that can't be decoded are left out of the result.
+     *
+     * @return A future that completes with fingerprints keyed by image id
+     */
+    public CompletableFuture<Map<Integer, Fingerprint>> getFingerprints(Collection<ImageInfo> imgs) {
+        return getFingerprints(imgs, false);
+    }
+
+    /**
+     * Gets the fingerprint of every image. Images that can't be decoded are left out of the result.
+     *
+     * @param waitForStore Whether the future should only complete once newly computed fingerprints have been stored,
+     *                     and fail if they couldn't be. Otherwise they are stored in the background.
+     * @return A future that completes with fingerprints keyed by image id
+     */
+    public CompletableFuture<Map<Integer, Fingerprint>> getFingerprints(Collection<ImageInfo> imgs, boolean waitForStore) {
+        return db.read(db -> db.getFingerprints(imgs)).thenCompose(stored -> {
+            final long start = System.currentTimeMillis();
+            final List<CompletableFuture<Fingerprint>> decodes = new ArrayList<>();
+            final List<ImageInfo> decoded = new ArrayList<>();
+            for (ImageInfo img : imgs) {
+                final Fingerprint fingerprint = stored.get(img.getId());
+                if (fingerprint == null) {
+                    decodes.add(CompletableFuture.supplyAsync(() -> compute(img), decodeExecutor));
+                    decoded.add(img);
+                }
+            }
+            if (decodes.isEmpty()) return CompletableFuture.completedFuture(stored);
+
+            return CompletableFuture.allOf(decodes.toArray(new CompletableFuture<?>[decodes.size()])).thenCompose(v -> {
+                final Map<Integer, Fingerprint> computed = new HashMap<>();
+                for (int i = 0; i < decodes.size(); i++) {
+                    final Fingerprint fingerprint = decodes.get(i).join();
+                    if (fingerprint != null) computed.put(decoded.get(i).getId(), fingerprint);
+                }
+                System.out.println("Computed " + computed.size() + " fingerprints in " + (System.currentTimeMillis() - start) + "ms, read " + stored.size() + " from database");
+
+                final Map<Integer, Fingerprint> results = new HashMap<>(stored);
+                results.putAll(computed);
+
+                final CompletableFuture<Void> store = db.write(db -> {
+                    db.setFingerprints(computed);
+                    return null;
+                });
+                if (waitForStore) return store.thenApply(x -> results);
+
+                //Storing is only a cache for next time, so results don't wait for it
+                store.exceptionally(ex -> {
+                    AsyncDBInterface.getCause(ex).printStackTrace();
+                    return null;
+                });
+                return CompletableFuture.completedFuture(results);
+            });
+        });
+    }
+
+    private static Fingerprint compute(ImageInfo img) {
+        try {
+            return img.computeFingerprint();
+        } catch (HistogramReadException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        decodeExecutor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,221 @@
+package manimage.common;
+
+
+import java.util.Arrays;
+
+/**
+ * Multi-index hash table of 64 bit hashes for Hamming distance searches. Every hash is split into m chunks, and each
+ * chunk position gets a table from chunk value to the hashes holding it. If two hashes are within distance k of each
+ * other then at least one of their chunks is within distance k/m, so a search only probes the chunk values near the
+ * query's chunks instead of comparing against every hash.
+ * <p>
+ * The tables are built once from arrays and then read only, so searches may run from several threads at once.
+ */
+public class HashIndex {
+
+    /**
+     * Widest chunk, which bounds the table size of each chunk position to 2^16 buckets.
+     */
+    private static final int MAX_CHUNK_BITS = 16;
+
+    private final long[] hashes;
+    private final int[] ids;
+    private final int maxDistance;
+
+    private final int chunks;
+    private final int radius;
+    private final int[] chunkShift;
+    private final int[] chunkMask;
+
+    /**
+     * Per chunk position, entries sorted by chunk value. The entries with chunk value v are at
+     * entries[c][starts[c][v]] up to entries[c][starts[c][v + 1]].
+     */
+    private final int[][] starts;
+    private final int[][] entries;
+
+    /**
+     * Hash of every entry, in the same order as the entries, so scanning a bucket reads memory sequentially.
+     */
+    private final long[][] entryHashes;
+
+    /**
+     * Chunk sized masks with at most {@link #radius} bits set, the values probed around each chunk of a query.
+     */
+    private final int[] flipMasks;
+
+
+    /**
+     * @param hashes      Hashes to index
+     * @param ids         Id of each hash, reported back by searches
+     * @param maxDistance Largest Hamming distance that will be searched for, which decides how the hashes are chunked
+     */
+    public HashIndex(long[] hashes, int[] ids, int maxDistance) {
+        if (hashes.length != ids.length) throw new IllegalArgumentException("Mismatched hashes and ids");
+        if (maxDistance < 0 || maxDistance > ImageHash.BITS) throw new IllegalArgumentException("Invalid distance: " + maxDistance);
+        this.hashes = hashes;
+        this.ids = ids;
+        this.maxDistance = maxDistance;
+
+        chunks = chooseChunks(hashes.length, maxDistance);
+        radius = maxDistance / chunks;
+        chunkShift = new int[chunks];
+        chunkMask = new int[chunks];
+        starts = new int[chunks][];
+        entries = new int[chunks][];
+        entryHashes = new long[chunks][];
+
+        for (int c = 0; c < chunks; c++) {
+            chunkShift[c] = c * ImageHash.BITS / chunks;
+            final int bits = (c + 1) * ImageHash.BITS / chunks - chunkShift[c];
+            chunkMask[c] = (1 << bits) - 1;
+
+            final int[] start = new int[(1 << bits) + 1];
+            for (long hash : hashes) {
+                start[chunk(hash, c) + 1]++;
+            }
+            for (int v = 0; v < 1 << bits; v++) {
+                start[v + 1] += start[v];
+            }
+
+            final int[] entry = new int[hashes.length];
+            final long[] entryHash = new long[hashes.length];
+            final int[] next = Arrays.copyOf(start, 1 << bits);
+            for (int i = 0; i < hashes.length; i++) {
+                final int e = next[chunk(hashes[i], c)]++;
+                entry[e] = i;
+                entryHash[e] = hashes[i];
+            }
+
+            starts[c] = start;
+            entries[c] = entry;
+            entryHashes[c] = entryHash;
+        }
+
+        final int widest = chunkMask[chunks - 1] + 1;
+        int count = 0;
+        final int[] masks = new int[widest];
+        for (int mask = 0; mask < widest; mask++) {
+            if (Integer.bitCount(mask) <= radius) masks[count++] = mask;
+        }
+        flipMasks = Arrays.copyOf(masks, count);
+    }
+
+    /**
+     * Picks the number of chunks with the fewest expected probes and candidates per search. Fewer, wider chunks need
+     * many probes at a larger radius, while more, narrower chunks have crowded buckets.
+     */
+    private static int chooseChunks(int size, int maxDistance) {
+        int best = ImageHash.BITS / MAX_CHUNK_BITS;
+        double bestCost = Double.MAX_VALUE;
+        for (int m = ImageHash.BITS / MAX_CHUNK_BITS; m <= Math.min(ImageHash.BITS, maxDistance + 1); m++) {
+            final int bits = ImageHash.BITS / m;
+            final int r = maxDistance / m;
+
+            double probes = 0, combinations = 1;
+            for (int i = 0; i <= Math.min(r, bits); i++) {
+                probes += combinations;
+                combinations = combinations * (bits - i) / (i + 1);
+            }
+
+            //Looking up a bucket costs about as much as comparing a few candidates
+            final double cost = m * probes * (4 + (double) size / (1 << bits));
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = m;
+            }
+        }
+        return best;
+    }
+
+    private int chunk(long hash, int c) {
+        return (int) (hash >>> chunkShift[c]) & chunkMask[c];
+    }
+
+    /**
+     * @return True if the chunk of two hashes at position c is the first one within the probe radius, so that a pair
+     * found through several chunks is only reported through one
+     */
+    private boolean isFirstMatchingChunk(long hash1, long hash2, int c) {
+        final long diff = hash1 ^ hash2;
+        for (int p = 0; p < c; p++) {
+            if (Integer.bitCount(chunk(diff, p)) <= radius) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds every id whose hash is within the given Hamming distance of a hash.
+     *
+     * @param maxDistance At most the distance the index was built for
+     */
+    public void search(long hash, int maxDistance, MatchConsumer consumer) {
+        checkDistance(maxDistance);
+
+        for (int c = 0; c < chunks; c++) {
+            final int value = chunk(hash, c);
+            for (int mask : flipMasks) {
+                if (mask > chunkMask[c]) break;
+                final int probe = value ^ mask;
+                for (int e = starts[c][probe]; e < starts[c][probe + 1]; e++) {
+                    final long other = entryHashes[c][e];
+                    final int distance = ImageHash.distance(hash, other);
+                    if (distance <= maxDistance && isFirstMatchingChunk(hash, other, c)) consumer.match(ids[entries[c][e]], distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds every pair of indexed ids whose hashes are within the given Hamming distance of each other. Each pair is
+     * reported once.
+     *
+     * @param maxDistance At most the distance the index was built for
+     */
+    public void findPairs(int maxDistance, PairConsumer consumer) {
+        checkDistance(maxDistance);
+
+        for (int i = 0; i < hashes.length; i++) {
+            final long hash = hashes[i];
+            for (int c = 0; c < chunks; c++) {
+                final int value = chunk(hash, c);
+                for (int mask : flipMasks) {
+                    if (mask > chunkMask[c]) break;
+                    final int probe = value ^ mask;
+                    for (int e = starts[c][probe]; e < starts[c][probe + 1]; e++) {
+                        final long other = entryHashes[c][e];
+                        final int distance = ImageHash.distance(hash, other);
+                        if (distance > maxDistance || !isFirstMatchingChunk(hash, other, c)) continue;
+
+                        //Only pair with later entries, so each pair is seen from one side
+                        final int j = entries[c][e];
+                        if (j > i) consumer.pair(ids[i], ids[j], distance);
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkDistance(int maxDistance) {
+        if (maxDistance > this.maxDistance) throw new IllegalArgumentException("Index was built for distances up to " + this.maxDistance + ": " + maxDistance);
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    @FunctionalInterface
+    public interface MatchConsumer {
+
+        void match(int id, int distance);
+
+    }
+
+    @FunctionalInterface
+    public interface PairConsumer {
+
+        void pair(int id1, int id2, int distance);
+
+    }
+
+}
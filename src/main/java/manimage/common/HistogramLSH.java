@@ -0,0 +1,396 @@
+package manimage.common;
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Histogram comparison for libraries too large to compare every pair. Histograms are bucketed with locality-sensitive
+ * hashing, and only pairs that share a bucket in at least one table are compared.
+ * <p>
+ * Each histogram is summed down to a coarse copy of 64 bins, whose L1 distance is never more than the distance between
+ * the full histograms. The square roots of the coarse bins are projected onto a shared pool of random Gaussian
+ * directions, and each projection is cut into buckets about as wide as the threshold distance. Projected differences
+ * follow the Hellinger distance between histograms, which separates near duplicates from unrelated images much more
+ * sharply than projecting the bins directly. Each table keys every histogram by its buckets along a few projections
+ * picked from the pool, with enough projections that a table puts only a couple of unrelated images in each image's
+ * bucket. A similar pair is missed only if every table separates it, so more tables find more pairs at the cost of
+ * more candidates to check.
+ * <p>
+ * Candidates are checked against the coarse distance first, and only candidates that pass are checked against their
+ * full histograms. Results are exact for the pairs that are found, but unlike {@link SimilarityEngine} some similar
+ * pairs can be missed.
+ */
+public class HistogramLSH {
+
+    /**
+     * Default number of hash tables. Finds about 99% of similar pairs in a library of 20,000 images.
+     */
+    public static final int DEFAULT_TABLES = 32;
+
+    /**
+     * Random projections shared by every table.
+     */
+    private static final int POOL_SIZE = 128;
+
+    /**
+     * Limits on the number of projections combined into the key of each table.
+     */
+    private static final int MIN_PROJECTIONS = 4;
+    private static final int MAX_PROJECTIONS = 24;
+
+    /**
+     * Average number of other images sharing each image's bucket in one table that the number of projections aims for.
+     */
+    private static final double PAIRS_PER_IMAGE = 4;
+
+    /**
+     * Buckets checked by one task without splitting further.
+     */
+    private static final int BUCKETS_PER_TASK = 256;
+
+    private static final int COARSE_FACTOR = 16;
+    private static final int COARSE_BINS = ImageHistogram.BINS / COARSE_FACTOR;
+
+    private final int tables;
+    private final long seed;
+    private final ForkJoinPool pool;
+
+
+    public HistogramLSH(int tables) {
+        this(tables, 0, ForkJoinPool.commonPool());
+    }
+
+    public HistogramLSH(int tables, long seed, ForkJoinPool pool) {
+        if (tables < 1) throw new IllegalArgumentException("Need at least one table");
+
+        this.tables = tables;
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    /**
+     * Finds similar pairs among every stored histogram in the library. Only the coarse copies are held while finding
+     * candidates, and only the full histograms of images in a candidate pair are read back to check them.
+     *
+     * @return Pairs that are at least the threshold similar, from most to least similar
+     */
+    public List<SimilarPair> findPairs(DBInterface db, double threshold) throws SQLException {
+        final long start = System.currentTimeMillis();
+        final int maxDistance = ImageHistogram.getMaxDistance(threshold);
+
+        final Coarse coarse = new Coarse();
+        db.forEachHistogram(coarse::add);
+        final int[] ids = Arrays.copyOf(coarse.ids, coarse.size);
+        final long[] candidates = findCandidates(coarse.bins, coarse.size, maxDistance);
+
+        final Set<Integer> needed = new HashSet<>();
+        for (long candidate : candidates) {
+            needed.add(ids[(int) (candidate >>> 32)]);
+            needed.add(ids[(int) candidate]);
+        }
+        final Map<Integer, ImageHistogram> histograms = db.getStoredHistograms(needed);
+
+        final List<int[]> matches = new ArrayList<>();
+        final List<Integer> distances = new ArrayList<>();
+        final Set<Integer> matched = new HashSet<>();
+        for (long candidate : candidates) {
+            final int id1 = ids[(int) (candidate >>> 32)], id2 = ids[(int) candidate];
+            final ImageHistogram h1 = histograms.get(id1), h2 = histograms.get(id2);
+            if (h1 == null || h2 == null) continue;
+
+            final int distance = h1.getDistance(h2);
+            if (distance <= maxDistance) {
+                matches.add(new int[]{id1, id2});
+                distances.add(distance);
+                matched.add(id1);
+                matched.add(id2);
+            }
+        }
+
+        final Map<Integer, ImageInfo> imgs = db.getImagesById(matched);
+        final List<SimilarPair> results = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            final ImageInfo img1 = imgs.get(matches.get(i)[0]), img2 = imgs.get(matches.get(i)[1]);
+            if (img1 != null && img2 != null) results.add(new SimilarPair(img1, img2, ImageHistogram.getSimilarity(distances.get(i))));
+        }
+        results.sort(Comparator.comparingDouble(SimilarPair::getSimilarity).reversed());
+
+        System.out.println("Found " + results.size() + " similar pairs among " + ids.length + " histograms from " + candidates.length + " candidates in " + (System.currentTimeMillis() - start) + "ms");
+        return results;
+    }
+
+    /**
+     * @param coarse      Coarse copies of n histograms, back to back
+     * @param maxDistance Largest L1 distance between full histograms that counts as similar
+     * @return Pairs of indices that share a bucket and pass the coarse distance check, packed as (i << 32 | j) with
+     * i < j, in ascending order without repeats
+     */
+    private long[] findCandidates(int[] coarse, int n, int maxDistance) {
+        final byte[] buckets = project(coarse, n, maxDistance);
+        final CandidateList candidates = new CandidateList();
+
+        final long[] entries = new long[n];
+        final int projections = chooseProjections(buckets, n, entries);
+        final Random random = new Random(seed);
+        for (int table = 0; table < tables; table++) {
+            sortByKey(buckets, n, table, pickProjections(random, projections), entries);
+
+            final List<Integer> starts = new ArrayList<>();
+            for (int i = 0; i < n; ) {
+                int end = i + 1;
+                while (end < n && entries[end] >>> 32 == entries[i] >>> 32) end++;
+                if (end - i > 1) starts.add(i);
+                i = end;
+            }
+            if (starts.isEmpty()) continue;
+
+            final int[] bucketStarts = new int[starts.size()];
+            for (int i = 0; i < bucketStarts.length; i++) {
+                bucketStarts[i] = starts.get(i);
+            }
+            final Table work = new Table(n, entries, bucketStarts, coarse, maxDistance, candidates);
+            pool.invoke(new BucketTask(work, 0, bucketStarts.length));
+        }
+
+        //A pair that shares a bucket in several tables is found by each of them
+        final long[] found = candidates.toArray();
+        Arrays.sort(found);
+        int unique = 0;
+        for (int i = 0; i < found.length; i++) {
+            if (i == 0 || found[i] != found[i - 1]) found[unique++] = found[i];
+        }
+        return Arrays.copyOf(found, unique);
+    }
+
+    /**
+     * Picks the fewest projections per table at which a trial table puts few enough pairs in shared buckets. Larger
+     * libraries need more projections.
+     */
+    private int chooseProjections(byte[] buckets, int n, long[] entries) {
+        final int[] picks = pickProjections(new Random(seed - 1), MAX_PROJECTIONS);
+        for (int projections = MIN_PROJECTIONS; projections < MAX_PROJECTIONS; projections++) {
+            sortByKey(buckets, n, -1, Arrays.copyOf(picks, projections), entries);
+
+            long pairs = 0;
+            for (int i = 0; i < n; ) {
+                int end = i + 1;
+                while (end < n && entries[end] >>> 32 == entries[i] >>> 32) end++;
+                pairs += (long) (end - i) * (end - i - 1) / 2;
+                i = end;
+            }
+            if (pairs <= n * PAIRS_PER_IMAGE) return projections;
+        }
+        return MAX_PROJECTIONS;
+    }
+
+    /**
+     * Keys every histogram by its buckets along some projections, and sorts them by key so each bucket of a table is a
+     * run of equal keys.
+     *
+     * @param entries Filled with (key << 32 | index) in ascending order
+     */
+    private static void sortByKey(byte[] buckets, int n, int table, int[] picks, long[] entries) {
+        for (int i = 0; i < n; i++) {
+            int key = table;
+            for (int pick : picks) {
+                key = key * 0x9E3779B1 + buckets[i * POOL_SIZE + pick];
+            }
+            entries[i] = (long) key << 32 | i;
+        }
+        Arrays.sort(entries);
+    }
+
+    /**
+     * @return Distinct projections from the shared pool that make up the key of one table
+     */
+    private static int[] pickProjections(Random random, int projections) {
+        final int[] pool = new int[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool[i] = i;
+        }
+        for (int i = 0; i < projections; i++) {
+            final int j = i + random.nextInt(POOL_SIZE - i);
+            final int swap = pool[i];
+            pool[i] = pool[j];
+            pool[j] = swap;
+        }
+        return Arrays.copyOf(pool, projections);
+    }
+
+    /**
+     * Projects every coarse histogram onto the shared pool of random directions and cuts each projection into buckets.
+     *
+     * @return The bucket of every coarse histogram along every projection, as buckets[i * POOL_SIZE + projection]
+     */
+    private byte[] project(int[] coarse, int n, int maxDistance) {
+        final double width = Math.max(1, Math.sqrt(maxDistance));
+        final Random random = new Random(seed);
+        final double[] weights = new double[POOL_SIZE * COARSE_BINS];
+        final double[] offsets = new double[POOL_SIZE];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = random.nextGaussian() / width;
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = random.nextDouble();
+        }
+
+        final byte[] buckets = new byte[n * POOL_SIZE];
+        final double[] root = new double[COARSE_BINS];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < COARSE_BINS; k++) {
+                root[k] = Math.sqrt(coarse[i * COARSE_BINS + k]);
+            }
+            for (int projection = 0; projection < POOL_SIZE; projection++) {
+                double value = offsets[projection];
+                for (int k = 0; k < COARSE_BINS; k++) {
+                    value += weights[projection * COARSE_BINS + k] * root[k];
+                }
+                //Projections only span a few dozen buckets, wrapping around merges far apart buckets at worst
+                buckets[i * POOL_SIZE + projection] = (byte) Math.floor(value);
+            }
+        }
+
+        return buckets;
+    }
+
+    /**
+     * Growing array of coarse histograms, filled while streaming histograms from the database.
+     */
+    private static final class Coarse {
+
+        private int[] ids = new int[1024];
+        private int[] bins = new int[1024 * COARSE_BINS];
+        private int size = 0;
+
+
+        private void add(ImageHistogram histogram, int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                bins = Arrays.copyOf(bins, size * 2 * COARSE_BINS);
+            }
+            ids[size] = id;
+            histogram.copyCoarseBins(bins, size * COARSE_BINS, COARSE_FACTOR);
+            size++;
+        }
+
+    }
+
+    /**
+     * Candidates gathered from every task. Tasks collect into their own arrays and add them all at once.
+     */
+    private static final class CandidateList {
+
+        private final List<long[]> chunks = Collections.synchronizedList(new ArrayList<>());
+
+
+        private void add(long[] chunk, int length) {
+            if (length > 0) chunks.add(Arrays.copyOf(chunk, length));
+        }
+
+        private long[] toArray() {
+            int length = 0;
+            for (long[] chunk : chunks) length += chunk.length;
+
+            final long[] results = new long[length];
+            int i = 0;
+            for (long[] chunk : chunks) {
+                System.arraycopy(chunk, 0, results, i, chunk.length);
+                i += chunk.length;
+            }
+            return results;
+        }
+
+    }
+
+    private static final class Table {
+
+        private final int n;
+        private final long[] entries;
+        private final int[] bucketStarts;
+        private final int[] coarse;
+        private final int maxDistance;
+        private final CandidateList candidates;
+
+
+        private Table(int n, long[] entries, int[] bucketStarts, int[] coarse, int maxDistance, CandidateList candidates) {
+            this.n = n;
+            this.entries = entries;
+            this.bucketStarts = bucketStarts;
+            this.coarse = coarse;
+            this.maxDistance = maxDistance;
+            this.candidates = candidates;
+        }
+
+        private void checkBuckets(int start, int end) {
+            long[] found = new long[64];
+            int count = 0;
+
+            for (int b = start; b < end; b++) {
+                final int bucketStart = bucketStarts[b];
+                final long key = entries[bucketStart] >>> 32;
+                int bucketEnd = bucketStart + 1;
+                while (bucketEnd < n && entries[bucketEnd] >>> 32 == key) bucketEnd++;
+
+                for (int x = bucketStart; x < bucketEnd; x++) {
+                    for (int y = x + 1; y < bucketEnd; y++) {
+                        final int i = (int) entries[x], j = (int) entries[y];
+                        if (coarseDistance(i, j) > maxDistance) continue;
+
+                        if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                        found[count++] = (long) Math.min(i, j) << 32 | Math.max(i, j);
+                    }
+                }
+            }
+
+            candidates.add(found, count);
+        }
+
+        private int coarseDistance(int i, int j) {
+            final int a = i * COARSE_BINS, b = j * COARSE_BINS;
+            int distance = 0;
+            for (int k = 0; k < COARSE_BINS; k++) {
+                distance += Math.abs(coarse[a + k] - coarse[b + k]);
+            }
+            return distance;
+        }
+
+    }
+
+    private static final class BucketTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Table table;
+        private final int start, end;
+
+
+        private BucketTask(Table table, int start, int end) {
+            this.table = table;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= BUCKETS_PER_TASK) {
+                table.checkBuckets(start, end);
+            } else {
+                final int middle = (start + end) >>> 1;
+                invokeAll(new BucketTask(table, start, middle), new BucketTask(table, middle, end));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,152 @@
+package manimage.common;
+
+
+import javafx.scene.image.Image;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decoded images kept in memory up to a budget of bytes, counting each image as width x height x 4 bytes. When an
+ * image pushes the total over budget, the least recently used images are dropped first. Pinned images are never
+ * dropped, so the ones on screen stay loaded even when the budget is too small for them. Images are expected to be
+ * fully loaded when they are added.
+ */
+public class ImageCache {
+
+    private final String name;
+    private long budget;
+
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Integer> pinned = new HashSet<>();
+    private long weight = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+
+    /**
+     * @param name   Name used when printing the cache's counters
+     * @param budget Bytes of images to keep
+     */
+    public ImageCache(String name, long budget) {
+        this.name = name;
+        this.budget = budget;
+    }
+
+    /**
+     * @return The cached image, or null if it has to be loaded
+     */
+    public synchronized Image get(int id) {
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.image;
+    }
+
+    /**
+     * Gets a cached image without counting a hit or a miss.
+     */
+    public synchronized Image peek(int id) {
+        final Entry entry = entries.get(id);
+        return entry != null ? entry.image : null;
+    }
+
+    public synchronized void put(int id, Image image) {
+        final Entry entry = new Entry(image, weigh(image));
+        final Entry old = entries.put(id, entry);
+        if (old != null) weight -= old.weight;
+        weight += entry.weight;
+        evict();
+    }
+
+    public synchronized void remove(int id) {
+        final Entry entry = entries.remove(id);
+        if (entry != null) weight -= entry.weight;
+    }
+
+    /**
+     * Keeps images from being dropped, replacing the previously pinned images.
+     */
+    public synchronized void pin(Collection<Integer> ids) {
+        pinned.clear();
+        pinned.addAll(ids);
+        evict();
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<Integer, Entry>> iter = entries.entrySet().iterator();
+        while (weight > budget && iter.hasNext()) {
+            final Map.Entry<Integer, Entry> next = iter.next();
+            if (pinned.contains(next.getKey())) continue;
+
+            weight -= next.getValue().weight;
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    private static long weigh(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return Bytes of images currently cached
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " cache: " + entries.size() + " images, " + weight / 1024 / 1024 + "MB of " + budget / 1024 / 1024 + "MB, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    private static class Entry {
+
+        private final Image image;
+        private final long weight;
+
+
+        private Entry(Image image, long weight) {
+            this.image = image;
+            this.weight = weight;
+        }
+
+    }
+
+}
@@ -5,6 +5,11 @@ package manimage.common;
  */
 public interface ImageDatabaseUpdateListener {
 
-    void databaseUpdated();
+    /**
+     * Called on the thread that made the change, once the change has been committed.
+     *
+     * @param change The images and fields that changed
+     */
+    void databaseUpdated(DatabaseChange change);
 
 }
@@ -0,0 +1,117 @@
+package manimage.common;
+
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes images with ImageIO, which unlike a JavaFX {@link javafx.scene.image.Image} can be used from any thread and
+ * can skip pixels while decoding instead of scaling a full size image afterwards.
+ */
+public final class ImageDecoder {
+
+    private ImageDecoder() {
+
+    }
+
+    /**
+     * Decodes the first frame of an image, keeping every n-th pixel in each direction so that the longer side ends up
+     * no smaller than maxSize. Images that are already small enough are decoded at full size.
+     *
+     * @param file    Image file
+     * @param maxSize Size of the longer side to subsample towards, or 0 to decode at full size
+     * @return The decoded image, or null if ImageIO has no reader for the file
+     * @throws IOException If the file could not be read or decoded
+     */
+    public static BufferedImage read(File file, int maxSize) throws IOException {
+        return read(file, maxSize, maxSize);
+    }
+
+    /**
+     * Decodes the first frame of an image, keeping every n-th pixel in each direction so that it still covers the size
+     * it would have when scaled to fit within maxWidth x maxHeight. The step is chosen from the size in the header, so
+     * skipped pixels are never stored and a large photo costs little more memory than the result.
+     *
+     * @param maxWidth  Width of the box to subsample towards, or 0 to decode at full size
+     * @param maxHeight Height of the box to subsample towards, or 0 to decode at full size
+     * @return The decoded image, or null if ImageIO has no reader for the file
+     * @throws IOException If the file could not be read or decoded
+     */
+    public static BufferedImage read(File file, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Cannot open " + file);
+
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+
+                final ImageReadParam param = reader.getDefaultReadParam();
+                if (maxWidth > 0 && maxHeight > 0) {
+                    final int step = Math.min(reader.getWidth(0) / maxWidth, reader.getHeight(0) / maxHeight);
+                    if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+                }
+
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Smoothly scales an image down to fit within maxWidth x maxHeight, keeping its aspect ratio. Images that already fit
+     * are returned as they are.
+     */
+    public static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        final double scale = Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight());
+        if (scale >= 1) return image;
+
+        final int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        final int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        final BufferedImage scaled = new BufferedImage(width, height, image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Reads the size of the first frame of an image from its header, without decoding any pixels.
+     *
+     * @return The size in pixels, or null if ImageIO has no reader for the file
+     * @throws IOException If the file could not be read
+     */
+    public static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Cannot open " + file);
+
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+}
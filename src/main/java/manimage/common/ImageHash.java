@@ -0,0 +1,76 @@
+package manimage.common;
+
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 64 bit difference hash (dHash) of an image. The image is shrunk to 9x8 grey cells by averaging, and each bit records
+ * whether a cell is brighter than its right neighbour. Resizing, recompression and small colour changes flip few bits,
+ * so the Hamming distance between two hashes measures how different the images look.
+ */
+public final class ImageHash {
+
+    public static final int BITS = 64;
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+    private ImageHash() {
+
+    }
+
+    public static long compute(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final long[] sums = new long[COLUMNS * ROWS];
+        final int[] counts = new int[COLUMNS * ROWS];
+        final int[] row = new int[width];
+
+        //Cell of every column, so the inner loop is a lookup instead of a division
+        final int[] cellX = new int[width];
+        for (int x = 0; x < width; x++) {
+            cellX[x] = x * COLUMNS / width;
+        }
+
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            final int cellRow = (y * ROWS / height) * COLUMNS;
+            for (int x = 0; x < width; x++) {
+                final int pixel = row[x];
+                final int cell = cellRow + cellX[x];
+                sums[cell] += 299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < COLUMNS - 1; x++) {
+                final int cell = y * COLUMNS + x;
+                hash <<= 1;
+                //Compare averages without dividing: a/ca > b/cb <=> a*cb > b*ca
+                if (sums[cell] * counts[cell + 1] > sums[cell + 1] * counts[cell]) hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /**
+     * @return Similarity between 0 and 1 of two hashes that are the given Hamming distance apart
+     */
+    public static double getSimilarity(int distance) {
+        return 1 - (double) distance / BITS;
+    }
+
+    /**
+     * @return Largest Hamming distance between two hashes that are at least the given similarity
+     */
+    public static int getMaxDistance(double similarity) {
+        return Math.max(0, Math.min(BITS, (int) Math.floor((1 - similarity) * BITS + 1e-9)));
+    }
+
+}
@@ -3,92 +3,238 @@ package manimage.common;
 
 import javafx.scene.image.Image;
 import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritablePixelFormat;
 
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Normalized alpha, red, green and blue histograms of an image. Each of the 4 * 256 bins holds the fraction of pixels
+ * that fall into it, quantized to an unsigned 16 bit fixed point value so a histogram takes 2 KB in memory and on disk.
+ */
 public final class ImageHistogram {
 
-    private final double[] alpha = new double[256];
-    private final double[] red = new double[256];
-    private final double[] green = new double[256];
-    private final double[] blue = new double[256];
+    /**
+     * Version written by {@link #toBytes()}: a version byte followed by the bins as big-endian unsigned shorts.
+     */
+    private static final byte BINARY_VERSION = 2;
 
-    public ImageHistogram(final Image image) throws HistogramReadException {
-        if (image.isBackgroundLoading() && image.getProgress() != 1) {
-            Object lock = new Object();
-            synchronized (lock) {
-                image.progressProperty().addListener((observable, oldValue, newValue) -> {
-                    if (newValue.equals(1)) lock.notifyAll();
-                });
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                }
-            }
-        }
+    /**
+     * Earlier version: a version byte followed by the bins as big-endian doubles.
+     */
+    private static final byte BINARY_VERSION_DOUBLES = 1;
 
-        final long pixelCount = (long) (image.getWidth() * image.getHeight());
+    static final int CHANNEL_BINS = 256;
+    static final int BINS = 4 * CHANNEL_BINS;
 
-        for (int i = 0; i < 256; i++) {
-            alpha[i] = red[i] = green[i] = blue[i] = 0;
-        }
+    /**
+     * Fixed point value of a bin holding every pixel of a channel.
+     */
+    static final int BIN_SCALE = 0xffff;
+
+    /**
+     * Length of the binary form written by {@link #toBytes()}.
+     */
+    public static final int BYTES = 1 + BINS * Short.BYTES;
+
+    /**
+     * Alpha, red, green and blue bins back to back, as unsigned fixed point fractions of {@link #BIN_SCALE}.
+     */
+    private final short[] bins = new short[BINS];
 
-        PixelReader pixelReader = image.getPixelReader();
+    /**
+     * Computes the histogram of a fully loaded image. Use {@link FingerprintService} to compute histograms without
+     * waiting for an image to load.
+     *
+     * @throws HistogramReadException If the image has not finished loading, failed to load, or has no readable pixels
+     */
+    public ImageHistogram(final Image image) throws HistogramReadException {
+        if (image.isError()) throw new HistogramReadException("Image failed to load");
+        if (image.getProgress() < 1) throw new HistogramReadException("Image has not finished loading");
+
+        final PixelReader pixelReader = image.getPixelReader();
         if (pixelReader == null) {
             throw new HistogramReadException();
         }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int argb = pixelReader.getArgb(x, y);
-                int a = (0xff & (argb >> 24));
-                int r = (0xff & (argb >> 16));
-                int g = (0xff & (argb >> 8));
-                int b = (0xff & argb);
-
-                alpha[a]++;
-                red[r]++;
-                green[g]++;
-                blue[b]++;
-            }
+        final int width = (int) image.getWidth();
+        final int height = (int) image.getHeight();
+        final WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
+        final int[] row = new int[width];
+        final int[] counts = new int[BINS];
+
+        for (int y = 0; y < height; y++) {
+            pixelReader.getPixels(0, y, width, 1, format, row, 0, width);
+            count(row, width, counts);
         }
 
-        for (int i = 0; i < 256; i++) {
-            alpha[i] /= pixelCount;
-            red[i] /= pixelCount;
-            green[i] /= pixelCount;
-            blue[i] /= pixelCount;
+        setBins(counts, (long) width * height);
+    }
+
+    /**
+     * Computes the histogram of an image decoded by ImageIO. Safe to use from any thread.
+     */
+    public ImageHistogram(final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] row = new int[width];
+        final int[] counts = new int[BINS];
+
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            count(row, width, counts);
         }
+
+        setBins(counts, (long) width * height);
     }
 
+    /**
+     * Reads the legacy text form: 1024 space separated doubles in alpha, red, green, blue order.
+     */
     public ImageHistogram(String parse) {
-        for (int i = 0; i < 256; i++) {
-            alpha[i] = Double.parseDouble(parse.substring(0, parse.indexOf(' ')));
-            parse = parse.substring(parse.indexOf(' ') + 1);
+        int start = 0;
+        for (int i = 0; i < BINS; i++) {
+            final int end = parse.indexOf(' ', start);
+            bins[i] = quantize(Double.parseDouble(parse.substring(start, end)));
+            start = end + 1;
         }
-        for (int i = 0; i < 256; i++) {
-            red[i] = Double.parseDouble(parse.substring(0, parse.indexOf(' ')));
-            parse = parse.substring(parse.indexOf(' ') + 1);
+    }
+
+    private ImageHistogram() {
+
+    }
+
+    private static void count(int[] argb, int length, int[] counts) {
+        for (int i = 0; i < length; i++) {
+            final int pixel = argb[i];
+            counts[pixel >>> 24]++;
+            counts[CHANNEL_BINS + ((pixel >> 16) & 0xff)]++;
+            counts[2 * CHANNEL_BINS + ((pixel >> 8) & 0xff)]++;
+            counts[3 * CHANNEL_BINS + (pixel & 0xff)]++;
         }
-        for (int i = 0; i < 256; i++) {
-            green[i] = Double.parseDouble(parse.substring(0, parse.indexOf(' ')));
-            parse = parse.substring(parse.indexOf(' ') + 1);
+    }
+
+    private void setBins(int[] counts, long pixelCount) {
+        if (pixelCount == 0) return;
+
+        for (int i = 0; i < BINS; i++) {
+            bins[i] = quantize((double) counts[i] / pixelCount);
         }
-        for (int i = 0; i < 256; i++) {
-            blue[i] = Double.parseDouble(parse.substring(0, parse.indexOf(' ')));
-            parse = parse.substring(parse.indexOf(' ') + 1);
+    }
+
+    /**
+     * Reads the binary form written by {@link #toBytes()} or by an earlier version.
+     *
+     * @throws HistogramReadException If the data is truncated or was written by an unknown version
+     */
+    public static ImageHistogram fromBytes(byte[] bytes) throws HistogramReadException {
+        if (bytes == null) throw new HistogramReadException("No histogram data");
+        return fromBytes(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads one histogram starting at the buffer's position, straight into the bins without intermediate copies. The
+     * position is advanced past the histogram.
+     *
+     * @throws HistogramReadException If the data is truncated or was written by an unknown version
+     */
+    public static ImageHistogram fromBytes(ByteBuffer buffer) throws HistogramReadException {
+        if (!buffer.hasRemaining()) throw new HistogramReadException("No histogram data");
+
+        final byte version = buffer.get();
+        final ImageHistogram hist = new ImageHistogram();
+        if (version == BINARY_VERSION) {
+            if (buffer.remaining() < BINS * Short.BYTES) throw new HistogramReadException("Truncated histogram data");
+            buffer.asShortBuffer().get(hist.bins);
+            buffer.position(buffer.position() + BINS * Short.BYTES);
+        } else if (version == BINARY_VERSION_DOUBLES) {
+            if (buffer.remaining() < BINS * Double.BYTES) throw new HistogramReadException("Truncated histogram data");
+            for (int i = 0; i < BINS; i++) {
+                hist.bins[i] = quantize(buffer.getDouble());
+            }
+        } else {
+            throw new HistogramReadException("Unknown histogram version: " + version);
+        }
+        return hist;
+    }
+
+    /**
+     * @return A version byte followed by the bins as big-endian unsigned shorts
+     */
+    public byte[] toBytes() {
+        final ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+        buffer.put(BINARY_VERSION);
+        buffer.asShortBuffer().put(bins);
+        return buffer.array();
+    }
+
+    private static short quantize(double fraction) {
+        return (short) Math.round(Math.max(0, Math.min(1, fraction)) * BIN_SCALE);
+    }
+
+    /**
+     * @return The fixed point value of a bin, between 0 and {@link #BIN_SCALE}
+     */
+    int getBin(int index) {
+        return bins[index] & 0xffff;
+    }
+
+    /**
+     * Copies the bins into a packed array as unsigned values, starting at an offset.
+     */
+    void copyBins(char[] dest, int offset) {
+        for (int i = 0; i < BINS; i++) {
+            dest[offset + i] = (char) bins[i];
+        }
+    }
+
+    /**
+     * Writes a coarse copy of the bins into an array, starting at an offset. Each coarse bin is the sum of factor
+     * neighbouring bins, so the L1 distance between coarse copies is never more than between the full histograms.
+     */
+    void copyCoarseBins(int[] dest, int offset, int factor) {
+        for (int i = 0; i < BINS / factor; i++) {
+            dest[offset + i] = 0;
+        }
+        for (int i = 0; i < BINS; i++) {
+            dest[offset + i / factor] += bins[i] & 0xffff;
         }
     }
 
     public double getSimilarity(ImageHistogram other) {
-        double da = 0, dr = 0, dg = 0, db = 0;
+        return getSimilarity(getDistance(other));
+    }
 
-        for (int i = 0; i < 256; i++) {
-            da += Math.abs(alpha[i] - other.alpha[i]);
-            dr += Math.abs(red[i] - other.red[i]);
-            dg += Math.abs(green[i] - other.green[i]);
-            db += Math.abs(blue[i] - other.blue[i]);
+    /**
+     * @return L1 distance between the fixed point bins of two histograms
+     */
+    int getDistance(ImageHistogram other) {
+        int distance = 0;
+        for (int i = 0; i < BINS; i++) {
+            distance += Math.abs((bins[i] & 0xffff) - (other.bins[i] & 0xffff));
         }
+        return distance;
+    }
 
-        return 1 - (da + dr + dg + db) / 8;
+    /**
+     * @param distance L1 distance between the fixed point bins of two histograms
+     * @return Similarity between 0 and 1
+     */
+    static double getSimilarity(int distance) {
+        return 1 - distance / (8.0 * BIN_SCALE);
+    }
+
+    /**
+     * @return Largest L1 distance between the fixed point bins of two histograms that are at least the given similarity
+     */
+    static int getMaxDistance(double similarity) {
+        int distance = (int) Math.floor((1 - Math.max(0, Math.min(1, similarity))) * 8 * BIN_SCALE);
+        //Correct for rounding, so a distance is within the maximum exactly when getSimilarity(distance) >= similarity
+        while (getSimilarity(distance + 1) >= similarity) distance++;
+        while (distance >= 0 && getSimilarity(distance) < similarity) distance--;
+        return distance;
     }
 
     public boolean isSimilar(ImageHistogram other, double confidence) {
@@ -99,25 +245,26 @@ public final class ImageHistogram {
     public boolean equals(Object obj) {
         if (obj instanceof ImageHistogram) {
             ImageHistogram hist = (ImageHistogram) obj;
-            if (hist == this) return true;
-
-            for (int i = 0; i < alpha.length; i++) {
-                if (hist.alpha[i] != alpha[i] || hist.red[i] != red[i] || hist.green[i] != green[i] || hist.blue[i] != blue[i]) return false;
-            }
-
-            return true;
+            return hist == this || Arrays.equals(hist.bins, bins);
         }
 
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bins);
+    }
+
+    /**
+     * @return The legacy text form read by {@link #ImageHistogram(String)}
+     */
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (double d : alpha) sb.append(d).append(" ");
-        for (double d : red) sb.append(d).append(" ");
-        for (double d : green) sb.append(d).append(" ");
-        for (double d : blue) sb.append(d).append(" ");
+        for (int i = 0; i < BINS; i++) {
+            sb.append((double) getBin(i) / BIN_SCALE).append(" ");
+        }
         return sb.toString();
     }
 
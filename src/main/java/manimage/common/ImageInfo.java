@@ -11,30 +11,40 @@ import manimage.main.Main;
 import uk.co.caprica.vlcj.player.MediaPlayer;
 import uk.co.caprica.vlcj.player.MediaPlayerFactory;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.lang.ref.SoftReference;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashSet;
 
 public class ImageInfo {
 
     private int id;
     private long added;
-    private URL src;
-    private File path;
-    private String[] tags;
-
-    private SoftReference<Image> image;
-    private SoftReference<Image> thumbnail;
-    private ImageHistogram histogram;
+    //Updated by the database and decode threads while the FX thread reads them. Each is replaced whole, never mutated
+    private volatile URL src;
+    private volatile File path;
+    private volatile String[] tags;
 
     private static final String[] VLC_ARGS = {"--intf", "dummy", "--vout", "dummy", "--no-audio", "--no-osd", "--no-spu", "--no-stats", "--no-sub-autodetect-file", "--no-disable-screensaver", "--no-snapshot-preview"};
 //    private static final MediaPlayer thumbnailMediaPlayer = new MediaPlayerFactory(VLC_ARGS).newHeadlessMediaPlayer();
 
     public static final int THUMBNAIL_SIZE = 150;
+    public static final int HISTOGRAM_SIZE = 512;
+
+    /**
+     * Decoded thumbnails and full images of every image, keyed by id. By default thumbnails may use an eighth of the
+     * heap and full images a quarter.
+     */
+    public static final ImageCache THUMBNAILS = new ImageCache("Thumbnail", Runtime.getRuntime().maxMemory() / 8);
+    public static final ImageCache IMAGES = new ImageCache("Image", Runtime.getRuntime().maxMemory() / 4);
+
+    private static volatile ThumbnailStore thumbnailStore;
 
     public ImageInfo(int id, long added, String src, String path, String[] tags) {
         this.id = id;
@@ -44,7 +54,12 @@ public class ImageInfo {
         this.tags = tags;
     }
 
-    public void update(String src, String path, String[] tags) {
+    public synchronized void update(String src, String path, String[] tags) {
+        if (this.path == null ? path != null : !this.path.getPath().equals(path)) {
+            //Cached images are of the old file
+            THUMBNAILS.remove(id);
+            IMAGES.remove(id);
+        }
         if (path == null) {
             this.path = null;
         } else {
@@ -62,55 +77,138 @@ public class ImageInfo {
         this.tags = tags;
     }
 
-    public ImageHistogram getHistogram() {
-        if (histogram != null) return histogram;
+    /**
+     * Decodes the file again and computes its histogram and perceptual hash from the same decode, along with the full
+     * size read from the file's header. The file is decoded on the calling thread at roughly {@link #HISTOGRAM_SIZE}
+     * pixels, so this may be used from background threads.
+     */
+    public Fingerprint computeFingerprint() throws HistogramReadException {
+        //Stamp before decoding, so a file changed during the decode is seen as stale next time
+        final FileStamp stamp = FileStamp.of(path);
+        final BufferedImage decoded = decodeForFingerprint();
+        final ImageHistogram histogram = new ImageHistogram(decoded);
 
+        Dimension size = null;
         try {
-            histogram = new ImageHistogram(getImage(false));
-        } catch (HistogramReadException e) {
+            size = ImageDecoder.readSize(path);
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return histogram;
-    }
-
-    public Image getThumbnail() {
-        if (thumbnail == null || thumbnail.get() == null) {
-            if (Main.IMAGE_FILTER.accept(path)) {
-                Image img = new Image("file:" + path.getAbsolutePath(), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true, true);
-                thumbnail = new SoftReference<>(img);
-                return img;
-            } else if (Main.VIDEO_FILTER.accept(path)) {
-//                thumbnailMediaPlayer.prepareMedia("file:" + path.getAbsolutePath());
-//                thumbnailMediaPlayer.setPosition(0.3f);
-//                BufferedImage bi = thumbnailMediaPlayer.getSnapshot(THUMBNAIL_SIZE, 0);
-//                Image img = SwingFXUtils.toFXImage(bi, null);
-//                thumbnail = new SoftReference<>(img);
-//                return img;
-                return null;
-            }
+        if (size == null) return new Fingerprint(stamp, histogram, ImageHash.compute(decoded));
+        return new Fingerprint(stamp, histogram, ImageHash.compute(decoded), size.width, size.height);
+    }
+
+    private BufferedImage decodeForFingerprint() throws HistogramReadException {
+        BufferedImage decoded;
+        try {
+            decoded = ImageDecoder.read(path, HISTOGRAM_SIZE);
+        } catch (IOException e) {
+            throw new HistogramReadException("Failed to decode " + path + ": " + e.getMessage());
         }
 
-        return thumbnail.get();
+        if (decoded == null) {
+            //No ImageIO reader for this format, JavaFX may still be able to decode it
+            Image img = new Image("file:" + path.getAbsolutePath(), HISTOGRAM_SIZE, HISTOGRAM_SIZE, true, false, false);
+            if (img.isError()) throw new HistogramReadException("Failed to decode " + path);
+            decoded = SwingFXUtils.fromFXImage(img, null);
+        }
+        return decoded;
     }
 
-    public void cancelLoadingThumbnail() {
-        if (thumbnail == null || thumbnail.get() == null || thumbnail.get().getProgress() == 1) return;
+    /**
+     * @param store Store thumbnails are read from when possible and saved to once decoded, or null to always decode
+     */
+    public static void setThumbnailStore(ThumbnailStore store) {
+        thumbnailStore = store;
+    }
 
-        thumbnail.get().cancel();
+    /**
+     * @return The thumbnail if it is already in memory, or null if it has to be read or decoded
+     */
+    public Image getCachedThumbnail() {
+        return THUMBNAILS.get(id);
     }
 
-    public Image getImage(boolean backgroundLoading) {
-        if (image == null || image.get() == null) {
-            Image img = new Image("file:" + path.getAbsolutePath(), backgroundLoading);
-            image = new SoftReference<>(img);
-            img.exceptionProperty().addListener((observable, oldValue, newValue) -> {
-                newValue.printStackTrace();
-                //TODO: Improve this error reporting
-            });
-            return img;
+    /**
+     * Gets the thumbnail on the calling thread, from memory, the thumbnail store, or by decoding the file, so this is
+     * meant for background threads. Decoded thumbnails are stored for next time.
+     *
+     * @return The thumbnail, or null if the file is not an image or could not be decoded
+     */
+    public Image readThumbnail() {
+        final Image cached = THUMBNAILS.peek(id);
+        if (cached != null) return cached;
+        if (!Main.IMAGE_FILTER.accept(path)) return null;
+
+        final FileStamp stamp = FileStamp.of(path);
+        Image img = readStoredThumbnail(stamp);
+        if (img == null) {
+            img = decode(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            if (img == null) return null;
+
+            final ThumbnailStore store = thumbnailStore;
+            if (store != null) store.put(id, stamp, img);
         }
 
-        return image.get();
+        THUMBNAILS.put(id, img);
+        return img;
+    }
+
+    /**
+     * @return The stored thumbnail of this version of the file, or null if there is none
+     */
+    private Image readStoredThumbnail(FileStamp stamp) {
+        final ThumbnailStore store = thumbnailStore;
+        if (store == null) return null;
+
+        final BufferedImage stored = store.get(id, stamp);
+        return stored != null ? SwingFXUtils.toFXImage(stored, null) : null;
+    }
+
+    /**
+     * @return The decoded image if it is already in memory, or null if it has to be decoded
+     */
+    public Image getCachedImage() {
+        return IMAGES.get(id);
+    }
+
+    /**
+     * Decodes the image on the calling thread, only as large as it can be shown within maxWidth x maxHeight, so this is
+     * meant for background threads. The result is cached in place of any full size image.
+     *
+     * @return The decoded image, or null if it could not be decoded
+     */
+    public Image readImage(int maxWidth, int maxHeight) {
+        final Image cached = IMAGES.peek(id);
+        if (cached != null && cached.getProgress() == 1 && !cached.isError()) return cached;
+
+        final Image img = decode(maxWidth, maxHeight);
+        if (img != null) IMAGES.put(id, img);
+        return img;
+    }
+
+    /**
+     * Decodes the file on the calling thread, scaled to fit within maxWidth x maxHeight, without caching the result.
+     * The pixels that would be scaled away are skipped while decoding when ImageIO can read the format, and JavaFX is
+     * used otherwise.
+     *
+     * @return The decoded image, or null if neither could decode it
+     */
+    public Image decode(int maxWidth, int maxHeight) {
+        try {
+            final BufferedImage decoded = ImageDecoder.read(path, maxWidth, maxHeight);
+            if (decoded != null) return SwingFXUtils.toFXImage(ImageDecoder.scaleToFit(decoded, maxWidth, maxHeight), null);
+        } catch (IOException e) {
+            //JavaFX can still read some files that ImageIO rejects
+            System.out.println("ImageIO failed to decode " + path + ": " + e.getMessage());
+        }
+
+        final Image img = new Image("file:" + path.getAbsolutePath(), maxWidth, maxHeight, true, true, false);
+        if (img.isError()) {
+            System.out.println("Failed to decode " + path + ": " + img.getException());
+            return null;
+        }
+        return img;
     }
 
     public File getPath() {
@@ -121,12 +219,13 @@ public class ImageInfo {
         return tags;
     }
 
-    public void addTag(String tag) {
-        tags = Arrays.copyOf(tags, tags.length + 1);
-        tags[tags.length - 1] = tag;
+    public synchronized void addTag(String tag) {
+        String[] work = Arrays.copyOf(tags, tags.length + 1);
+        work[work.length - 1] = tag;
+        tags = work;
     }
 
-    public void removeTag(String tag) {
+    public synchronized void removeTag(String tag) {
         String[] work = new String[tags.length - 1];
         int i = 0;
         for (String t : tags) {
@@ -138,6 +237,13 @@ public class ImageInfo {
         tags = work;
     }
 
+    public synchronized void editTags(Collection<String> add, Collection<String> remove) {
+        LinkedHashSet<String> work = new LinkedHashSet<>(Arrays.asList(tags));
+        work.removeAll(remove);
+        work.addAll(add);
+        tags = work.toArray(new String[work.size()]);
+    }
+
     public int getId() {
         return id;
     }
@@ -0,0 +1,178 @@
+package manimage.common;
+
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.function.Supplier;
+
+/**
+ * Identity map of img_id to the single {@link ImageInfo} instance representing that row. Keys are stored as primitive
+ * ints in a chained hash table and values are softly referenced, so entries the GC has cleared are unlinked by
+ * draining a {@link ReferenceQueue} on every access.
+ */
+public class ImageInfoCache {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final ReferenceQueue<ImageInfo> queue = new ReferenceQueue<>();
+
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+
+    public synchronized ImageInfo get(int id) {
+        expungeStaleEntries();
+
+        for (Entry e = table[indexFor(id, table.length)]; e != null; e = e.next) {
+            if (e.id == id) {
+                ImageInfo info = e.get();
+                if (info != null) {
+                    hits++;
+                    return info;
+                }
+                break;
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Gets the cached image with an id, or creates and caches one if there is none. Checking and inserting happen under
+     * the same lock, so concurrent callers always get the same instance.
+     */
+    public synchronized ImageInfo getOrCreate(int id, Supplier<ImageInfo> creator) {
+        final ImageInfo cached = get(id);
+        if (cached != null) return cached;
+
+        final ImageInfo created = creator.get();
+        put(created);
+        return created;
+    }
+
+    public synchronized void put(ImageInfo info) {
+        expungeStaleEntries();
+
+        final int id = info.getId();
+        final int index = indexFor(id, table.length);
+        Entry prev = null;
+        for (Entry e = table[index]; e != null; prev = e, e = e.next) {
+            if (e.id == id) {
+                Entry replacement = new Entry(info, queue, e.next);
+                if (prev == null) table[index] = replacement;
+                else prev.next = replacement;
+                e.clear();
+                return;
+            }
+        }
+
+        table[index] = new Entry(info, queue, table[index]);
+        size++;
+        if (size > table.length * LOAD_FACTOR) resize();
+    }
+
+    public synchronized void remove(int id) {
+        expungeStaleEntries();
+
+        final int index = indexFor(id, table.length);
+        Entry prev = null;
+        for (Entry e = table[index]; e != null; prev = e, e = e.next) {
+            if (e.id == id) {
+                unlink(index, prev, e);
+                e.clear();
+                return;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < table.length; i++) {
+            for (Entry e = table[i]; e != null; e = e.next) {
+                e.clear();
+            }
+            table[i] = null;
+        }
+        size = 0;
+        while (queue.poll() != null) ;
+    }
+
+    public synchronized int size() {
+        expungeStaleEntries();
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Image info cache: " + size + " images, " + hits + " hits, " + misses + " misses";
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends ImageInfo> ref;
+        while ((ref = queue.poll()) != null) {
+            final Entry stale = (Entry) ref;
+            final int index = indexFor(stale.id, table.length);
+            Entry prev = null;
+            for (Entry e = table[index]; e != null; prev = e, e = e.next) {
+                if (e == stale) {
+                    unlink(index, prev, e);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void unlink(int index, Entry prev, Entry e) {
+        if (prev == null) table[index] = e.next;
+        else prev.next = e.next;
+        size--;
+    }
+
+    private void resize() {
+        final Entry[] old = table;
+        table = new Entry[old.length * 2];
+        for (Entry head : old) {
+            Entry e = head;
+            while (e != null) {
+                Entry next = e.next;
+                final int index = indexFor(e.id, table.length);
+                e.next = table[index];
+                table[index] = e;
+                e = next;
+            }
+        }
+    }
+
+    private static int indexFor(int id, int length) {
+        final int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (length - 1);
+    }
+
+    private static class Entry extends SoftReference<ImageInfo> {
+
+        private final int id;
+        private Entry next;
+
+
+        Entry(ImageInfo info, ReferenceQueue<ImageInfo> queue, Entry next) {
+            super(info, queue);
+            this.id = info.getId();
+            this.next = next;
+        }
+
+    }
+
+}
@@ -0,0 +1,37 @@
+package manimage.common;
+
+
+/**
+ * File size and full image size of an image, as recorded when it was last read.
+ */
+public final class ImageMetadata {
+
+    private final long fileSize;
+    private final int width, height;
+
+
+    public ImageMetadata(long fileSize, int width, int height) {
+        this.fileSize = fileSize;
+        this.width = width;
+        this.height = height;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return Width in pixels, or 0 if unknown
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height in pixels, or 0 if unknown
+     */
+    public int getHeight() {
+        return height;
+    }
+
+}
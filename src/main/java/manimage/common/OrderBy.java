@@ -3,6 +3,11 @@ package manimage.common;
 
 public class OrderBy {
 
+    /**
+     * Unique column appended to every ordering so that rows with equal sort keys still have a stable order
+     */
+    public static final String TIEBREAKER = "img_id";
+
     public String primaryOrder = "img_added";
     public boolean primaryDescending = true;
 
@@ -20,12 +25,29 @@ public class OrderBy {
 
     }
 
+    public String[] getColumns() {
+        if (primaryOrder.equals(TIEBREAKER) || secondaryOrder.equals(TIEBREAKER)) {
+            return new String[]{primaryOrder, secondaryOrder};
+        } else {
+            return new String[]{primaryOrder, secondaryOrder, TIEBREAKER};
+        }
+    }
+
+    public boolean[] getDescending() {
+        return new boolean[]{primaryDescending, secondaryDescending, secondaryDescending};
+    }
+
     @Override
     public String toString() {
-        String result = primaryOrder;
-        if (primaryDescending) result += " DESC";
-        result += ", " + secondaryOrder;
-        if (secondaryDescending) result += " DESC";
+        final String[] columns = getColumns();
+        final boolean[] descending = getDescending();
+
+        String result = columns[0];
+        if (descending[0]) result += " DESC";
+        for (int i = 1; i < columns.length; i++) {
+            result += ", " + columns[i];
+            if (descending[i]) result += " DESC";
+        }
 
         return result;
     }
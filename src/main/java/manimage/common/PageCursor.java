@@ -0,0 +1,25 @@
+package manimage.common;
+
+
+/**
+ * Sort key of a single row under an {@link OrderBy}. Used to seek directly to the rows that follow it instead of
+ * paging with an OFFSET, which has to step over every earlier row.
+ */
+public class PageCursor {
+
+    private final Object[] values;
+
+
+    PageCursor(Object[] values) {
+        this.values = values;
+    }
+
+    Object getValue(int index) {
+        return values[index];
+    }
+
+    int size() {
+        return values.length;
+    }
+
+}
@@ -0,0 +1,222 @@
+package manimage.common;
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Finds the images that look most like a given image. Images are ranked by the Hamming distance between their
+ * perceptual hashes, and images at the same distance by histogram similarity. Stored hashes are kept in memory in a
+ * {@link HashIndex}, so a query only compares against images with a nearby hash. The index is built on the first query
+ * and rebuilt after stored fingerprints change, at most once every {@link #REBUILD_INTERVAL} ms, so queries made while
+ * the library is being fingerprinted don't each reload every hash. Until then, newly fingerprinted images are missing
+ * from the results.
+ */
+public class SimilarImageIndex {
+
+    /**
+     * Hash distance the index is built for. Images further away than this are only found by a linear scan, which is
+     * only needed when fewer than k images are this close.
+     */
+    private static final int INDEX_DISTANCE = 12;
+
+    /**
+     * Most images with tied distances whose histograms are read to order them.
+     */
+    private static final int MAX_TIE_BREAKS = 1000;
+
+    private static final long REBUILD_INTERVAL = 60000;
+
+    private final DBInterface db;
+
+    private Snapshot snapshot = null;
+
+    /**
+     * Images removed since they were indexed, left out of results until the snapshot is rebuilt without them.
+     */
+    private final Set<Integer> removed = ConcurrentHashMap.newKeySet();
+    private final ImageDatabaseUpdateListener changeListener = change -> removed.addAll(change.getRemoved());
+
+
+    public SimilarImageIndex(DBInterface db) {
+        this.db = db;
+        db.addChangeListener(changeListener);
+    }
+
+    /**
+     * Stops tracking changes to the database. The index should not be used afterwards.
+     */
+    public void close() {
+        db.removeChangeListener(changeListener);
+    }
+
+    /**
+     * Finds the k images that look most like an image. An image that has not been fingerprinted yet is fingerprinted
+     * first.
+     *
+     * @return Up to k images, most similar first, not including the image itself
+     */
+    public List<ImageInfo> findNearest(ImageInfo img, int k) throws SQLException {
+        final Snapshot snapshot = getSnapshot();
+
+        final long hash;
+        final Integer position = snapshot.positions.get(img.getId());
+        if (position != null) {
+            hash = snapshot.hashes[position];
+        } else {
+            //Fingerprinted since the snapshot was built, or not at all yet
+            Fingerprint fingerprint = db.getFingerprints(Collections.singletonList(img)).get(img.getId());
+            if (fingerprint == null) {
+                try {
+                    fingerprint = img.computeFingerprint();
+                    db.setFingerprint(img, fingerprint);
+                } catch (HistogramReadException e) {
+                    e.printStackTrace();
+                    return new ArrayList<>();
+                }
+            }
+            hash = fingerprint.getHash();
+        }
+
+        final IntPredicate candidate = id -> id != img.getId() && !removed.contains(id);
+        final List<Neighbour> close = new ArrayList<>();
+        snapshot.index.search(hash, INDEX_DISTANCE, (id, distance) -> {
+            if (candidate.test(id)) close.add(new Neighbour(id, distance));
+        });
+
+        final List<Neighbour> nearest = selectNearest(img, close.size() >= k ? close : scan(snapshot, candidate, hash, k), k);
+        final List<Integer> ids = new ArrayList<>(nearest.size());
+        nearest.forEach(neighbour -> ids.add(neighbour.id));
+        final Map<Integer, ImageInfo> imgs = db.getImagesById(ids);
+
+        final List<ImageInfo> results = new ArrayList<>(nearest.size());
+        for (int id : ids) {
+            final ImageInfo found = imgs.get(id);
+            if (found != null) results.add(found);
+        }
+        return results;
+    }
+
+    /**
+     * Keeps the k closest candidates. Candidates tied with the k-th closest are ordered by histogram similarity, so
+     * which of them make the cut depends on more than the order they were found in.
+     */
+    private List<Neighbour> selectNearest(ImageInfo img, List<Neighbour> candidates, int k) throws SQLException {
+        candidates.sort(Comparator.comparingInt(neighbour -> neighbour.distance));
+        if (candidates.isEmpty()) return candidates;
+
+        //Everything up to the last distance that makes the cut, and no more histograms than needed
+        final int cutoff = candidates.get(Math.min(k, candidates.size()) - 1).distance;
+        int end = 0;
+        while (end < candidates.size() && candidates.get(end).distance <= cutoff && end < MAX_TIE_BREAKS) end++;
+        final List<Neighbour> nearest = new ArrayList<>(candidates.subList(0, Math.max(end, Math.min(k, candidates.size()))));
+
+        final List<Integer> ids = new ArrayList<>(nearest.size() + 1);
+        ids.add(img.getId());
+        nearest.forEach(neighbour -> ids.add(neighbour.id));
+        final Map<Integer, ImageHistogram> histograms = db.getStoredHistograms(ids);
+        final ImageHistogram histogram = histograms.get(img.getId());
+        if (histogram != null) {
+            for (Neighbour neighbour : nearest) {
+                final ImageHistogram other = histograms.get(neighbour.id);
+                if (other != null) neighbour.histogramSimilarity = histogram.getSimilarity(other);
+            }
+        }
+
+        nearest.sort(Comparator.comparingInt((Neighbour neighbour) -> neighbour.distance).thenComparing(Comparator.comparingDouble((Neighbour neighbour) -> neighbour.histogramSimilarity).reversed()));
+        return nearest.size() > k ? nearest.subList(0, k) : nearest;
+    }
+
+    /**
+     * Finds the k closest hashes by checking every one. Distances only range from 0 to 64, so the k-th smallest distance
+     * is found by counting instead of sorting.
+     */
+    private static List<Neighbour> scan(Snapshot snapshot, IntPredicate candidate, long hash, int k) {
+        final int[] counts = new int[ImageHash.BITS + 1];
+        for (int i = 0; i < snapshot.hashes.length; i++) {
+            if (candidate.test(snapshot.ids[i])) counts[ImageHash.distance(hash, snapshot.hashes[i])]++;
+        }
+
+        int cutoff = 0, total = 0;
+        while (cutoff < ImageHash.BITS && total + counts[cutoff] <= k) {
+            total += counts[cutoff++];
+        }
+
+        final List<Neighbour> results = new ArrayList<>();
+        for (int i = 0; i < snapshot.hashes.length; i++) {
+            final int distance = ImageHash.distance(hash, snapshot.hashes[i]);
+            if (distance <= cutoff && candidate.test(snapshot.ids[i])) results.add(new Neighbour(snapshot.ids[i], distance));
+        }
+        return results;
+    }
+
+    /**
+     * @return The index of the stored hashes, rebuilt first if fingerprints were stored since it was built and it is
+     * old enough to rebuild
+     */
+    private synchronized Snapshot getSnapshot() throws SQLException {
+        final int revision = db.getFingerprintRevision();
+        if (snapshot == null || (snapshot.revision != revision && System.currentTimeMillis() - snapshot.built >= REBUILD_INTERVAL)) {
+            final long start = System.currentTimeMillis();
+            snapshot = new Snapshot(revision, db.getHashes(Integer.MAX_VALUE));
+            //Removed before the hashes were read, so no longer in the snapshot
+            removed.removeIf(id -> !snapshot.positions.containsKey(id));
+            System.out.println("Indexed " + snapshot.hashes.length + " image hashes in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stored hashes as of one fingerprint revision. Read only once built, so queries may share it.
+     */
+    private static class Snapshot {
+
+        private final int revision;
+        private final long built = System.currentTimeMillis();
+        private final long[] hashes;
+        private final int[] ids;
+        private final Map<Integer, Integer> positions;
+        private final HashIndex index;
+
+
+        private Snapshot(int revision, Map<Integer, Long> stored) {
+            this.revision = revision;
+            hashes = new long[stored.size()];
+            ids = new int[stored.size()];
+            positions = new HashMap<>(stored.size() * 2);
+
+            int i = 0;
+            for (Map.Entry<Integer, Long> entry : stored.entrySet()) {
+                ids[i] = entry.getKey();
+                hashes[i] = entry.getValue();
+                positions.put(ids[i], i);
+                i++;
+            }
+            index = new HashIndex(hashes, ids, INDEX_DISTANCE);
+        }
+
+    }
+
+    private static class Neighbour {
+
+        private final int id;
+        private final int distance;
+        private double histogramSimilarity = 0;
+
+
+        private Neighbour(int id, int distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+    }
+
+}
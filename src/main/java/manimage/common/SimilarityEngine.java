@@ -0,0 +1,201 @@
+package manimage.common;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Exact all-pairs histogram comparison. The histograms are packed back to back into one primitive array, and the upper
+ * triangle of the n x n comparison matrix is cut into square tiles whose histograms fit in cache together. Tiles are
+ * compared in parallel on a fork-join pool.
+ * <p>
+ * Most pairs are rejected early. Each histogram also gets a coarse copy with every 16 neighbouring bins summed, and
+ * the distance between coarse copies can never exceed the distance between the full histograms, so pairs whose coarse
+ * distance is already past the threshold are skipped after 64 bins instead of 1024. Pairs that get past the coarse
+ * check stop as soon as their running distance passes the threshold.
+ */
+public class SimilarityEngine {
+
+    /**
+     * Default histogram similarity at which images count as duplicates.
+     */
+    public static final double DEFAULT_THRESHOLD = 0.9;
+
+    /**
+     * Histograms per tile side. Two tiles of 64 histograms take 256 KB, about the size of a per-core cache.
+     */
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * Tile pairs compared by one task without splitting further.
+     */
+    private static final int TILES_PER_TASK = 4;
+
+    /**
+     * Bins summed between checks of the running distance against the threshold.
+     */
+    private static final int EXIT_CHECK_INTERVAL = 64;
+
+    /**
+     * Neighbouring bins summed into each bin of the coarse copies.
+     */
+    private static final int COARSE_FACTOR = 16;
+    private static final int COARSE_BINS = ImageHistogram.BINS / COARSE_FACTOR;
+
+    private final ForkJoinPool pool;
+
+
+    public SimilarityEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public SimilarityEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Compares every pair of images that have a histogram. Blocks until every pair has been compared.
+     *
+     * @return Pairs that are at least the threshold similar, from most to least similar
+     */
+    public List<SimilarPair> findPairs(List<ImageInfo> imgs, Map<Integer, ImageHistogram> histograms, double threshold) {
+        final List<SimilarPair> pairs = Collections.synchronizedList(new ArrayList<>());
+        findPairs(imgs, histograms, threshold, pairs::add);
+        pairs.sort(Comparator.comparingDouble(SimilarPair::getSimilarity).reversed());
+        return pairs;
+    }
+
+    /**
+     * Compares every pair of images that have a histogram and passes on each pair that is at least the threshold
+     * similar. Blocks until every pair has been compared.
+     *
+     * @param consumer Receives matches as they are found. Called from several threads at once, in no particular order.
+     */
+    public void findPairs(List<ImageInfo> imgs, Map<Integer, ImageHistogram> histograms, double threshold, Consumer<SimilarPair> consumer) {
+        final List<ImageInfo> packedImgs = new ArrayList<>();
+        for (ImageInfo img : imgs) {
+            if (histograms.get(img.getId()) != null) packedImgs.add(img);
+        }
+
+        final int n = packedImgs.size();
+        final char[] packed = new char[n * ImageHistogram.BINS];
+        final int[] coarse = new int[n * COARSE_BINS];
+        for (int i = 0; i < n; i++) {
+            final ImageHistogram histogram = histograms.get(packedImgs.get(i).getId());
+            histogram.copyBins(packed, i * ImageHistogram.BINS);
+            histogram.copyCoarseBins(coarse, i * COARSE_BINS, COARSE_FACTOR);
+        }
+
+        //Every tile on or above the diagonal, as (row, column) tile indices
+        final int tiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+        final int[] tileRows = new int[tiles * (tiles + 1) / 2];
+        final int[] tileColumns = new int[tileRows.length];
+        int t = 0;
+        for (int row = 0; row < tiles; row++) {
+            for (int column = row; column < tiles; column++) {
+                tileRows[t] = row;
+                tileColumns[t] = column;
+                t++;
+            }
+        }
+
+        final Comparison comparison = new Comparison(packedImgs, packed, coarse, tileRows, tileColumns, ImageHistogram.getMaxDistance(threshold), consumer);
+        pool.invoke(new TileTask(comparison, 0, tileRows.length));
+    }
+
+    private static final class Comparison {
+
+        private final List<ImageInfo> imgs;
+        private final char[] packed;
+        private final int[] coarse;
+        private final int[] tileRows, tileColumns;
+        private final int maxDistance;
+        private final Consumer<SimilarPair> consumer;
+
+
+        private Comparison(List<ImageInfo> imgs, char[] packed, int[] coarse, int[] tileRows, int[] tileColumns, int maxDistance, Consumer<SimilarPair> consumer) {
+            this.imgs = imgs;
+            this.packed = packed;
+            this.coarse = coarse;
+            this.tileRows = tileRows;
+            this.tileColumns = tileColumns;
+            this.maxDistance = maxDistance;
+            this.consumer = consumer;
+        }
+
+        private void compareTile(int tile) {
+            final int n = imgs.size();
+            final int rowStart = tileRows[tile] * TILE_SIZE, rowEnd = Math.min(n, rowStart + TILE_SIZE);
+            final int columnStart = tileColumns[tile] * TILE_SIZE, columnEnd = Math.min(n, columnStart + TILE_SIZE);
+
+            for (int i = rowStart; i < rowEnd; i++) {
+                for (int j = Math.max(columnStart, i + 1); j < columnEnd; j++) {
+                    final int distance = distance(i, j);
+                    if (distance <= maxDistance) consumer.accept(new SimilarPair(imgs.get(i), imgs.get(j), ImageHistogram.getSimilarity(distance)));
+                }
+            }
+        }
+
+        /**
+         * @return L1 distance between two packed histograms, or some value above the max distance if it was exceeded
+         */
+        private int distance(int i, int j) {
+            final int[] coarse = this.coarse;
+            final int ca = i * COARSE_BINS, cb = j * COARSE_BINS;
+
+            int bound = 0;
+            for (int k = 0; k < COARSE_BINS; k++) {
+                bound += Math.abs(coarse[ca + k] - coarse[cb + k]);
+            }
+            if (bound > maxDistance) return bound;
+
+            final char[] packed = this.packed;
+            final int a = i * ImageHistogram.BINS, b = j * ImageHistogram.BINS;
+
+            int distance = 0;
+            for (int start = 0; start < ImageHistogram.BINS; start += EXIT_CHECK_INTERVAL) {
+                for (int k = start; k < start + EXIT_CHECK_INTERVAL; k++) {
+                    distance += Math.abs(packed[a + k] - packed[b + k]);
+                }
+                if (distance > maxDistance) break;
+            }
+            return distance;
+        }
+
+    }
+
+    private static final class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Comparison comparison;
+        private final int start, end;
+
+
+        private TileTask(Comparison comparison, int start, int end) {
+            this.comparison = comparison;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= TILES_PER_TASK) {
+                for (int tile = start; tile < end; tile++) {
+                    comparison.compareTile(tile);
+                }
+            } else {
+                final int middle = (start + end) >>> 1;
+                invokeAll(new TileTask(comparison, start, middle), new TileTask(comparison, middle, end));
+            }
+        }
+
+    }
+
+}
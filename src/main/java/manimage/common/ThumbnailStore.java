@@ -0,0 +1,490 @@
+package manimage.common;
+
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Thumbnails kept on disk between sessions, so an image only has to be decoded at full size the first time its
+ * thumbnail is shown. Thumbnails are appended to a single pack file as encoded images, and an index file next to it
+ * records where each image's latest thumbnail starts along with the size and modification time of the file it was made
+ * from. The index is read into memory when the store is opened, so a lookup is one positional read.
+ * <p>
+ * A thumbnail of a file that has changed since is treated as missing and replaced by the next one stored. Replaced
+ * thumbnails and those of removed images are left in the pack until they outweigh the live ones, at which point the
+ * pack is rewritten in the background with only the live thumbnails.
+ */
+public class ThumbnailStore implements ImageDatabaseUpdateListener {
+
+    private static final int PACK_MAGIC = 0x4D495450;
+    private static final int INDEX_MAGIC = 0x4D495449;
+    private static final int VERSION = 1;
+
+    /**
+     * Magic number, version and generation. Both files of a store share a generation, so a pack and an index that
+     * don't belong together are never used together.
+     */
+    private static final int FILE_HEADER = 16;
+
+    /**
+     * Image id, file size, file modification time and data length.
+     */
+    private static final int RECORD_HEADER = 24;
+
+    /**
+     * Image id, file size, file modification time, record offset and data length, or -1 for a removed image.
+     */
+    private static final int INDEX_ENTRY = 32;
+
+    /**
+     * Dead bytes the pack may hold before it is compacted, as long as they don't also outweigh the live bytes.
+     */
+    private static final long MIN_COMPACT_GARBAGE = 8 * 1024 * 1024;
+
+    private final File packFile;
+    private final File indexFile;
+
+    private FileChannel pack;
+    private FileChannel index;
+    private long generation;
+    private long packEnd;
+    private long indexEnd;
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private long liveBytes = 0;
+    private long garbageBytes = 0;
+
+    /**
+     * Encodes, appends and compacts, so writes to the files never overlap.
+     */
+    private final ExecutorService executor;
+    private final AtomicBoolean compactionQueued = new AtomicBoolean(false);
+
+
+    /**
+     * Opens the store, creating it if it doesn't exist. A store that can't be read is started over empty.
+     *
+     * @param packFile Pack file, the index is kept next to it
+     */
+    public ThumbnailStore(File packFile) throws IOException {
+        this.packFile = packFile;
+        this.indexFile = new File(packFile.getPath() + ".idx");
+
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Thumbnail Store");
+            t.setDaemon(true);
+            return t;
+        });
+
+        open();
+    }
+
+    private synchronized void open() throws IOException {
+        final long start = System.currentTimeMillis();
+        pack = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        entries.clear();
+        liveBytes = garbageBytes = 0;
+
+        final long packGeneration = readHeader(pack, PACK_MAGIC), indexGeneration = readHeader(index, INDEX_MAGIC);
+        if (packGeneration == -1 || packGeneration != indexGeneration) {
+            if (pack.size() > 0) System.out.println("Thumbnail store " + packFile + " is unreadable, starting over");
+            reset(System.currentTimeMillis());
+            return;
+        }
+        generation = packGeneration;
+        packEnd = pack.size();
+
+        //A partly written entry at the end is dropped
+        final int count = (int) ((index.size() - FILE_HEADER) / INDEX_ENTRY);
+        final ByteBuffer buffer = ByteBuffer.allocate(count * INDEX_ENTRY);
+        readFully(index, buffer, FILE_HEADER);
+        buffer.flip();
+        for (int i = 0; i < count; i++) {
+            final int id = buffer.getInt();
+            final Entry entry = new Entry(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt());
+            if (entry.length < 0) apply(id, null);
+            else if (entry.offset + entry.getRecordLength() <= packEnd) apply(id, entry);
+        }
+        indexEnd = FILE_HEADER + (long) count * INDEX_ENTRY;
+        index.truncate(indexEnd);
+
+        System.out.println("Opened thumbnail store with " + entries.size() + " thumbnails (" + liveBytes / 1024 + "KB live, " + garbageBytes / 1024 + "KB dead) in " + (System.currentTimeMillis() - start) + "ms");
+        maybeCompact();
+    }
+
+    /**
+     * Empties both files and starts a new generation.
+     */
+    private synchronized void reset(long generation) throws IOException {
+        this.generation = generation;
+        pack.truncate(0);
+        index.truncate(0);
+        writeHeader(pack, PACK_MAGIC, generation);
+        writeHeader(index, INDEX_MAGIC, generation);
+        packEnd = indexEnd = FILE_HEADER;
+        entries.clear();
+        liveBytes = garbageBytes = 0;
+    }
+
+    /**
+     * Reads a stored thumbnail. Cheap enough to call from the FX thread.
+     *
+     * @param stamp Current size and modification time of the image file
+     * @return The thumbnail, or null if none is stored for this version of the file
+     */
+    public BufferedImage get(int id, FileStamp stamp) {
+        final ByteBuffer record;
+        synchronized (this) {
+            final Entry entry = entries.get(id);
+            if (entry == null || pack == null || entry.size != stamp.getSize() || entry.modified != stamp.getModified()) return null;
+
+            record = ByteBuffer.allocate(entry.getRecordLength());
+            try {
+                readFully(pack, record, entry.offset);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        record.flip();
+        if (record.getInt() != id) return null;
+        try {
+            return ImageIO.read(new ByteArrayInputStream(record.array(), RECORD_HEADER, record.capacity() - RECORD_HEADER));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a thumbnail in the background, replacing any stored for the same image.
+     *
+     * @param stamp     Size and modification time of the image file when the thumbnail was decoded from it
+     * @param thumbnail Fully loaded thumbnail
+     */
+    public void put(int id, FileStamp stamp, Image thumbnail) {
+        if (executor.isShutdown()) return;
+
+        executor.execute(() -> {
+            try {
+                write(id, stamp, encode(SwingFXUtils.fromFXImage(thumbnail, null)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Encodes opaque thumbnails as JPEG and the rest as PNG, which keeps the pack small enough to hold the whole library.
+     */
+    private static byte[] encode(BufferedImage image) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (hasTransparency(image)) {
+            ImageIO.write(image, "png", out);
+        } else {
+            final BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            rgb.createGraphics().drawImage(image, 0, 0, null);
+            ImageIO.write(rgb, "jpg", out);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean hasTransparency(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) return false;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (image.getRGB(x, y) >>> 24 != 0xff) return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void write(int id, FileStamp stamp, byte[] data) throws IOException {
+        if (pack == null) return;
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + data.length);
+        record.putInt(id).putLong(stamp.getSize()).putLong(stamp.getModified()).putInt(data.length).put(data);
+        record.flip();
+        writeFully(pack, record, packEnd);
+
+        final Entry entry = new Entry(stamp.getSize(), stamp.getModified(), packEnd, data.length);
+        packEnd += entry.getRecordLength();
+        writeIndexEntry(id, entry);
+        apply(id, entry);
+        maybeCompact();
+    }
+
+    private void writeIndexEntry(int id, Entry entry) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY);
+        putIndexEntry(buffer, id, entry);
+        buffer.flip();
+        writeFully(index, buffer, indexEnd);
+        indexEnd += INDEX_ENTRY;
+    }
+
+    private static void putIndexEntry(ByteBuffer buffer, int id, Entry entry) {
+        if (entry == null) buffer.putInt(id).putLong(0).putLong(0).putLong(0).putInt(-1);
+        else buffer.putInt(id).putLong(entry.size).putLong(entry.modified).putLong(entry.offset).putInt(entry.length);
+    }
+
+    /**
+     * Records the latest entry of an image in memory, counting the one it replaces as dead.
+     *
+     * @param entry The new entry, or null if the image was removed
+     */
+    private void apply(int id, Entry entry) {
+        final Entry old = entry == null ? entries.remove(id) : entries.put(id, entry);
+        if (old != null) {
+            liveBytes -= old.getRecordLength();
+            garbageBytes += old.getRecordLength();
+        }
+        if (entry != null) liveBytes += entry.getRecordLength();
+    }
+
+    /**
+     * Forgets the thumbnails of removed images.
+     */
+    @Override
+    public void databaseUpdated(DatabaseChange change) {
+        try {
+            if (change.isReset()) {
+                synchronized (this) {
+                    if (pack != null) reset(generation + 1);
+                }
+                return;
+            }
+
+            if (change.getRemoved().isEmpty()) return;
+            synchronized (this) {
+                if (pack == null) return;
+                for (int id : change.getRemoved()) {
+                    if (entries.containsKey(id)) {
+                        writeIndexEntry(id, null);
+                        apply(id, null);
+                    }
+                }
+                maybeCompact();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void maybeCompact() {
+        if (executor.isShutdown()) return;
+        if (garbageBytes > MIN_COMPACT_GARBAGE && garbageBytes > liveBytes && compactionQueued.compareAndSet(false, true)) {
+            executor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Copies the live thumbnails into a new pack and swaps it in. Runs on the store's thread, so nothing is appended
+     * meanwhile, and only holds the lock for the swap so thumbnails can still be read while the copy is made.
+     */
+    private void compact() {
+        compactionQueued.set(false);
+        final long start = System.currentTimeMillis();
+
+        final Map<Integer, Entry> snapshot;
+        final FileChannel source;
+        final long newGeneration;
+        synchronized (this) {
+            if (pack == null) return;
+            snapshot = new HashMap<>(entries);
+            source = pack;
+            newGeneration = generation + 1;
+        }
+
+        final File tempPack = new File(packFile.getPath() + ".tmp"), tempIndex = new File(indexFile.getPath() + ".tmp");
+        FileChannel newPack = null, newIndex = null;
+        try {
+            newPack = FileChannel.open(tempPack.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            newIndex = FileChannel.open(tempIndex.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeHeader(newPack, PACK_MAGIC, newGeneration);
+            writeHeader(newIndex, INDEX_MAGIC, newGeneration);
+            newPack.position(FILE_HEADER);
+
+            final Map<Integer, Entry> moved = new HashMap<>();
+            final ByteBuffer indexBuffer = ByteBuffer.allocate(snapshot.size() * INDEX_ENTRY);
+            long end = FILE_HEADER, live = 0;
+            for (Map.Entry<Integer, Entry> e : snapshot.entrySet()) {
+                final Entry entry = e.getValue();
+                long copied = 0;
+                while (copied < entry.getRecordLength()) {
+                    copied += source.transferTo(entry.offset + copied, entry.getRecordLength() - copied, newPack);
+                }
+
+                final Entry next = new Entry(entry.size, entry.modified, end, entry.length);
+                moved.put(e.getKey(), next);
+                putIndexEntry(indexBuffer, e.getKey(), next);
+                end += next.getRecordLength();
+                live += next.getRecordLength();
+            }
+            indexBuffer.flip();
+            writeFully(newIndex, indexBuffer, FILE_HEADER);
+
+            synchronized (this) {
+                if (pack == null) throw new ClosedChannelException();
+
+                //Only removals can have happened since the snapshot, appends wait for this
+                long indexLength = FILE_HEADER + indexBuffer.limit();
+                final ByteBuffer tombstone = ByteBuffer.allocate(INDEX_ENTRY);
+                for (Map.Entry<Integer, Entry> e : snapshot.entrySet()) {
+                    if (entries.get(e.getKey()) == e.getValue()) continue;
+                    moved.remove(e.getKey());
+                    tombstone.clear();
+                    putIndexEntry(tombstone, e.getKey(), null);
+                    tombstone.flip();
+                    writeFully(newIndex, tombstone, indexLength);
+                    indexLength += INDEX_ENTRY;
+                    live -= e.getValue().getRecordLength();
+                }
+                newPack.close();
+                newIndex.close();
+
+                //Open files can't be replaced on every platform
+                pack.close();
+                index.close();
+                Files.move(tempPack.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                pack = FileChannel.open(packFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                System.out.println("Compacted thumbnail store from " + packEnd / 1024 + "KB to " + end / 1024 + "KB in " + (System.currentTimeMillis() - start) + "ms");
+                generation = newGeneration;
+                packEnd = end;
+                indexEnd = indexLength;
+                entries.clear();
+                entries.putAll(moved);
+                liveBytes = live;
+                garbageBytes = 0;
+            }
+        } catch (IOException e) {
+            try {
+                if (newPack != null) newPack.close();
+                if (newIndex != null) newIndex.close();
+                tempPack.delete();
+                tempIndex.delete();
+                synchronized (this) {
+                    //Closing the store interrupts a compaction, anything else is unexpected
+                    if (pack == null) return;
+                    e.printStackTrace();
+
+                    //The swap failed half way, so the files can't be trusted
+                    if (!pack.isOpen()) open();
+                }
+            } catch (IOException e2) {
+                e2.printStackTrace();
+                synchronized (this) {
+                    pack = index = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes storing queued thumbnails and closes the files.
+     */
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (pack == null) return;
+            pack.close();
+            index.close();
+            pack = index = null;
+        }
+    }
+
+    /**
+     * @return Number of images with a stored thumbnail, current or not
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The generation in the header, or -1 if the file has no valid header
+     */
+    private static long readHeader(FileChannel channel, int magic) throws IOException {
+        if (channel.size() < FILE_HEADER) return -1;
+
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != magic || header.getInt() != VERSION) return -1;
+        return header.getLong();
+    }
+
+    private static void writeHeader(FileChannel channel, int magic, long generation) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        header.putInt(magic).putInt(VERSION).putLong(generation);
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of thumbnail store");
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Where the latest thumbnail of an image is stored, and which version of the file it was made from.
+     */
+    private static class Entry {
+
+        private final long size;
+        private final long modified;
+        private final long offset;
+        private final int length;
+
+
+        private Entry(long size, long modified, long offset, int length) {
+            this.size = size;
+            this.modified = modified;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private int getRecordLength() {
+            return RECORD_HEADER + length;
+        }
+
+    }
+
+}
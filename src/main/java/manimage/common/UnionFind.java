@@ -0,0 +1,78 @@
+package manimage.common;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disjoint sets of ints that can be merged one link at a time. Ints that have never been linked are their own single
+ * element set. Uses union by size and path compression, so any sequence of links and lookups runs in close to constant
+ * time per operation.
+ */
+public class UnionFind {
+
+    private final Map<Integer, Integer> parents = new HashMap<>();
+    private final Map<Integer, Integer> sizes = new HashMap<>();
+
+
+    /**
+     * @return The element that represents the set containing x
+     */
+    public int find(int x) {
+        int root = x;
+        Integer parent;
+        while ((parent = parents.get(root)) != null && parent != root) {
+            root = parent;
+        }
+
+        //Point everything on the path straight at the root
+        while (x != root) {
+            final int next = parents.get(x);
+            parents.put(x, root);
+            x = next;
+        }
+
+        return root;
+    }
+
+    /**
+     * Merges the sets containing a and b.
+     *
+     * @return The element that represents the merged set
+     */
+    public int union(int a, int b) {
+        int rootA = find(a), rootB = find(b);
+        if (rootA == rootB) {
+            parents.putIfAbsent(rootA, rootA);
+            return rootA;
+        }
+
+        final int sizeA = sizes.getOrDefault(rootA, 1), sizeB = sizes.getOrDefault(rootB, 1);
+        if (sizeA < sizeB) {
+            final int swap = rootA;
+            rootA = rootB;
+            rootB = swap;
+        }
+        parents.put(rootA, rootA);
+        parents.put(rootB, rootA);
+        sizes.put(rootA, sizeA + sizeB);
+        sizes.remove(rootB);
+        return rootA;
+    }
+
+    /**
+     * @return Every set with more than one element, each in the order its elements were first linked
+     */
+    public Collection<List<Integer>> getGroups() {
+        final Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (int x : new ArrayList<>(parents.keySet())) {
+            groups.computeIfAbsent(find(x), k -> new ArrayList<>()).add(x);
+        }
+        groups.values().removeIf(group -> group.size() < 2);
+        return groups.values();
+    }
+
+}
@@ -0,0 +1,42 @@
+package manimage.main;
+
+
+import javafx.application.Platform;
+import manimage.common.DatabaseChange;
+import manimage.common.ImageDatabaseUpdateListener;
+
+/**
+ * Collects database changes from any thread and hands them to a target listener on the FX thread. Every change that
+ * arrives before the FX thread gets to run is merged, so a burst of edits causes a single refresh.
+ */
+public class CoalescingChangeListener implements ImageDatabaseUpdateListener {
+
+    private final ImageDatabaseUpdateListener target;
+
+    private DatabaseChange pending = null;
+
+
+    public CoalescingChangeListener(ImageDatabaseUpdateListener target) {
+        this.target = target;
+    }
+
+    @Override
+    public synchronized void databaseUpdated(DatabaseChange change) {
+        if (pending == null) {
+            pending = new DatabaseChange();
+            Platform.runLater(this::flush);
+        }
+        pending.merge(change);
+    }
+
+    private void flush() {
+        final DatabaseChange change;
+        synchronized (this) {
+            change = pending;
+            pending = null;
+        }
+
+        if (change != null && !change.isEmpty()) target.databaseUpdated(change);
+    }
+
+}
@@ -12,18 +12,28 @@ import javafx.scene.layout.ColumnConstraints;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.RowConstraints;
+import manimage.common.AsyncDBInterface;
 import manimage.common.DBInterface;
+import manimage.common.DatabaseChange;
 import manimage.common.ImageDatabaseUpdateListener;
 import manimage.common.ImageInfo;
 import manimage.common.OrderBy;
+import manimage.common.PageCursor;
+import manimage.common.SimilarImageIndex;
 
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 
 public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpdateListener {
@@ -44,9 +54,50 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
     private int pageLength = 100;
     private int pageNum = 0;
 
+    private boolean seekPaging = true;
+    private final HashMap<Integer, PageCursor> pageCursors = new HashMap<>();
+
+    /**
+     * When set, the grid shows the images that look most like this one instead of the search results.
+     */
+    private ImageInfo similarTo;
+    private SimilarImageIndex similarIndex;
+
+    /**
+     * Completes once the latest search is shown. Searches replaced before they were shown complete along with it.
+     */
+    private CompletableFuture<Void> pendingContents = null;
+
+    private final ThumbnailLoader thumbnailLoader = new ThumbnailLoader(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Rows past the bottom of the viewport to load while the grid is still. While scrolling, the rows it will reach
+     * within {@link #LOOKAHEAD_SECONDS} are loaded instead, up to {@link #MAX_LOOKAHEAD_SCREENS} viewports ahead.
+     */
+    private static final int LOOKAHEAD_ROWS = 2;
+    private static final double LOOKAHEAD_SECONDS = 0.5;
+    private static final int MAX_LOOKAHEAD_SCREENS = 3;
+
+    /**
+     * Rows at the start of the next and previous pages to prefetch, after everything on the current page.
+     */
+    private static final int ADJACENT_PAGE_ROWS = 2;
+    private static final double ADJACENT_PAGE_PRIORITY = 1e9;
+    private int adjacentPrefetchGeneration = 0;
+
+    /**
+     * Scroll speed in pixels per second, positive when scrolling down.
+     */
+    private double scrollVelocity = 0;
+    private double lastContentY = Double.NaN;
+    private long lastScrollTime;
+
     private DBInterface db;
+    private AsyncDBInterface asyncDb;
+    private final CoalescingChangeListener changeListener = new CoalescingChangeListener(this);
 
     private PreviewListener previewListener;
+    private IntConsumer pageListener;
 
 
     //----------------- Constructors -----------------------------------------------------------------------------------
@@ -54,7 +105,7 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
     public DatabaseImageGridPane() {
         //--------------------- Context Menu ---------------------------------------------------------------------------
 
-        MenuItem[] items = new MenuItem[7];
+        MenuItem[] items = new MenuItem[8];
 
         items[0] = new MenuItem("View Info");
         //TODO: Implement info viewing
@@ -76,19 +127,24 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
             }
         });
 
-        items[3] = new SeparatorMenuItem();
+        items[3] = new MenuItem("Find Similar");
+        items[3].setOnAction(event -> {
+            if (!selected.isEmpty()) findSimilar(getFirstSelected().getInfo());
+        });
+
+        items[4] = new SeparatorMenuItem();
 
-        items[4] = new MenuItem("Forget");
-        items[4].setOnAction(event -> {
+        items[5] = new MenuItem("Forget");
+        items[5].setOnAction(event -> {
             if (Main.getUserConfirmation("Forget Files", "Remove these files from the database permanently?", "This action cannot be undone!")) {
                 removeSelected();
             }
         });
 
-        items[5] = new SeparatorMenuItem();
+        items[6] = new SeparatorMenuItem();
 
-        items[6] = new MenuItem("Delete Files");
-        items[6].setOnAction(event -> {
+        items[7] = new MenuItem("Delete Files");
+        items[7].setOnAction(event -> {
             if (Main.getUserConfirmation("Delete Files", "Delete this files permanently?", "This action cannot be undone!")) {
                 deleteSelected();
             }
@@ -160,6 +216,10 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
         return db;
     }
 
+    AsyncDBInterface getAsyncDatabase() {
+        return asyncDb;
+    }
+
     private int getCurrentSelectedIndex() {
         int index = 0;
         if (getLastSelected() != null) index = imageViews.indexOf(getLastSelected());
@@ -185,20 +245,37 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
         this.previewListener = previewListener;
     }
 
-    void setDatabase(DBInterface db) {
+    /**
+     * @param pageListener Told the page number whenever the grid changes page by itself
+     */
+    void setPageListener(IntConsumer pageListener) {
+        this.pageListener = pageListener;
+    }
+
+    void setDatabase(AsyncDBInterface asyncDb) {
         if (this.db != null) {
-            this.db.removeChangeListener(this);
+            this.db.removeChangeListener(changeListener);
         }
+        if (similarIndex != null) similarIndex.close();
 
-        this.db = db;
-        if (db != null) db.addChangeListener(this);
+        this.asyncDb = asyncDb;
+        this.db = asyncDb != null ? asyncDb.getDatabase() : null;
+        similarIndex = db != null ? new SimilarImageIndex(db) : null;
+        similarTo = null;
+        if (db != null) db.addChangeListener(changeListener);
     }
 
-    void setPage(int pageNum) {
+    /**
+     * @return A future that completes on the FX thread once the page is shown
+     */
+    CompletableFuture<Void> setPage(int pageNum) {
         this.pageNum = pageNum;
-        updateSearchContents();
-        unselectAll();
-        updateVisibleThumbnails();
+        return updateSearchContents().thenRun(() -> {
+            unselectAll();
+            updateVisibleThumbnails();
+            //Only after moving between pages, so refreshes caused by database changes don't add queries
+            prefetchAdjacentPages();
+        });
     }
 
     void setOrderBy(String primaryOrder, boolean primaryDescending, String secondaryOrder, boolean secondaryDescending) {
@@ -206,13 +283,24 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
         this.primaryOrderDescending = primaryDescending;
         this.secondaryOrder = secondaryOrder;
         this.secondaryOrderDescending = secondaryDescending;
+        pageCursors.clear();
+        similarTo = null;
     }
 
     void setSearchFilePath(String searchFilePath) {
         this.searchFilePath = searchFilePath;
+        pageCursors.clear();
+        similarTo = null;
+    }
+
+    void setSeekPaging(boolean seekPaging) {
+        this.seekPaging = seekPaging;
+        pageCursors.clear();
     }
 
     void setSearchTags(String[] searchTags) {
+        pageCursors.clear();
+        similarTo = null;
         this.searchTags = searchTags;
         if (searchTags != null) {
             if (searchTags.length == 0 || (searchTags.length == 1 && searchTags[0].isEmpty())) {
@@ -346,12 +434,10 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
         if (!selected.isEmpty()) {
             final ArrayList<ImageInfo> imgs = new ArrayList<>();
             selected.forEach(img -> imgs.add(img.getInfo()));
-            try {
-                db.removeImgs(imgs);
-            } catch (SQLException e) {
-                e.printStackTrace();
-                Main.showErrorMessage("Unexpected Error", "Error removing images from database", e.getLocalizedMessage());
-            }
+            asyncDb.removeImgs(imgs).exceptionally(ex -> {
+                Main.showDatabaseError("Error removing images from database", ex);
+                return null;
+            });
 //            unselectAll();
         }
         if (previewListener != null) {
@@ -382,24 +468,19 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
             for (GridImageView view : selected) {
                 imgs.add(view.getInfo());
             }
+            ArrayList<String> add = new ArrayList<>();
+            ArrayList<String> remove = new ArrayList<>();
             for (String tag : lastTagString.split(" ")) {
-                if (tag.charAt(0) == '-') {
-                    try {
-                        db.removeTag(imgs, tag.substring(1), true);
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                        Main.showErrorMessage("Unexpected Error", "Error removing tag from image", e.getLocalizedMessage());
-                    }
-                } else {
-                    try {
-                        db.addTag(imgs, tag, true);
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                        Main.showErrorMessage("Unexpected Error", "Error adding tag to image", e.getLocalizedMessage());
-                    }
+                if (tag.startsWith("-")) {
+                    if (tag.length() > 1) remove.add(tag.substring(1));
+                } else if (!tag.isEmpty()) {
+                    add.add(tag);
                 }
             }
-            db.notifyChangeListeners();
+            asyncDb.editTags(imgs, add, remove).exceptionally(ex -> {
+                Main.showDatabaseError("Error editing tags of images", ex);
+                return null;
+            });
         }
     }
 
@@ -411,34 +492,183 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
         }
     }
 
+    /**
+     * Shows the images that look most like an image, most similar first, until the next search. Later pages hold the
+     * next most similar images.
+     */
+    void findSimilar(ImageInfo img) {
+        similarTo = img;
+        if (pageListener != null) pageListener.accept(0);
+        setPage(0);
+    }
+
+    /**
+     * Requests the thumbnails of cells in view, closest to the middle of the viewport first, and of the rows just past
+     * it in the direction of scrolling. The faster the grid scrolls, the further ahead it loads. Requests of cells that
+     * fall out of that range are cancelled. Called again on every scroll to reorder the requests still queued.
+     */
     void updateVisibleThumbnails() {
         if (getScene() == null) return;
         ScrollPane scrollPane = (ScrollPane) getScene().lookup("#gridScrollPane");
         Bounds scrollPaneBounds = scrollPane.localToScene(scrollPane.getBoundsInLocal());
-        int updates = 0;
+        final double centerY = (scrollPaneBounds.getMinY() + scrollPaneBounds.getMaxY()) / 2;
 
         layout();
 
+        updateScrollVelocity(localToScene(0, 0).getY());
+        final double still = LOOKAHEAD_ROWS * ImageInfo.THUMBNAIL_SIZE;
+        final double moving = Math.min(Math.abs(scrollVelocity) * LOOKAHEAD_SECONDS, MAX_LOOKAHEAD_SCREENS * scrollPaneBounds.getHeight());
+        final double top = scrollPaneBounds.getMinY() - (scrollVelocity < 0 ? Math.max(still, moving) : ImageInfo.THUMBNAIL_SIZE);
+        final double bottom = scrollPaneBounds.getMaxY() + (scrollVelocity >= 0 ? Math.max(still, moving) : ImageInfo.THUMBNAIL_SIZE);
+
         for (GridImageView n : imageViews) {
             Bounds nodeBounds = n.localToScene(n.getBoundsInLocal());
-            if (!n.isThumbnailLoaded() && scrollPaneBounds.intersects(nodeBounds)) {
-                n.loadThumbnail();
-                updates++;
+            if (nodeBounds.getMaxY() < top || nodeBounds.getMinY() > bottom) {
+                thumbnailLoader.cancel(n);
+            } else if (!n.isThumbnailLoaded()) {
+                Image thumbnail = n.getInfo().getCachedThumbnail();
+                if (thumbnail != null) {
+                    thumbnailLoader.cancel(n);
+                    n.setThumbnail(thumbnail);
+                } else {
+                    //Whole rows first, then left to right within a row
+                    final double rowDistance = Math.abs((nodeBounds.getMinY() + nodeBounds.getMaxY()) / 2 - centerY);
+                    thumbnailLoader.request(n, rowDistance + nodeBounds.getMinX() / (scrollPaneBounds.getWidth() + 1));
+                }
             }
         }
     }
 
-    void updateSearchContents() {
-        if (db == null || !db.isConnected()) return;
-
-        ArrayList<ImageInfo> images;
-        try {
-            images = db.getImages(pageLength, pageLength * pageNum, new OrderBy(primaryOrder, primaryOrderDescending, secondaryOrder, secondaryOrderDescending), searchTags, searchFilePath);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            Main.showErrorMessage("Unexpected Error", "Error retrieving images from database", e.getLocalizedMessage());
+    /**
+     * @param contentY Scene position of the top of the grid, which moves up as the grid scrolls down
+     */
+    private void updateScrollVelocity(double contentY) {
+        final long now = System.nanoTime();
+        if (!Double.isNaN(lastContentY)) {
+            final double seconds = (now - lastScrollTime) / 1e9;
+            if (seconds > 0) {
+                final double velocity = (lastContentY - contentY) / seconds;
+                //Scrolling that resumes after a pause starts from its new speed
+                scrollVelocity = seconds > LOOKAHEAD_SECONDS ? velocity : (scrollVelocity + velocity) / 2;
+            }
+        }
+        lastContentY = contentY;
+        lastScrollTime = now;
+    }
+
+    /**
+     * Prefetches the first rows of the next and previous pages in the background, as many as fit in the thumbnail cache
+     * next to the current page, so changing page again shows cached thumbnails.
+     */
+    private void prefetchAdjacentPages() {
+        final int generation = ++adjacentPrefetchGeneration;
+        final int count = Math.min(ADJACENT_PAGE_ROWS * columnWidth(), getSpareThumbnailCapacity() / 2);
+        if (db == null || !db.isConnected() || similarTo != null || count <= 0) {
+            thumbnailLoader.prefetch(Collections.emptyList(), ADJACENT_PAGE_PRIORITY);
             return;
         }
+
+        final OrderBy order = new OrderBy(primaryOrder, primaryOrderDescending, secondaryOrder, secondaryOrderDescending);
+        final PageQuery next = new PageQuery(order, searchTags, searchFilePath, pageNum + 1, pageLength, count, seekPaging, pageCursors);
+        final PageQuery previous = pageNum > 0 ? new PageQuery(order, searchTags, searchFilePath, pageNum - 1, pageLength, count, seekPaging, pageCursors) : null;
+        asyncDb.read(db -> {
+            final ArrayList<ImageInfo> images = next.run(db);
+            if (previous != null) images.addAll(previous.run(db));
+            return images;
+        }).thenAcceptAsync(images -> {
+            if (generation == adjacentPrefetchGeneration) thumbnailLoader.prefetch(images, ADJACENT_PAGE_PRIORITY);
+        }, AsyncDBInterface.FX).exceptionally(ex -> {
+            //Only a prefetch, the page will be queried again if it is opened
+            ex.printStackTrace();
+            return null;
+        });
+    }
+
+    /**
+     * @return How many more thumbnails fit in the thumbnail cache next to those of the current page
+     */
+    private int getSpareThumbnailCapacity() {
+        final long capacity = ImageInfo.THUMBNAILS.getBudget() / ((long) ImageInfo.THUMBNAIL_SIZE * ImageInfo.THUMBNAIL_SIZE * 4);
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, capacity - imageViews.size()));
+    }
+
+    /**
+     * @param threads Number of thumbnails to decode at once
+     */
+    public void setThumbnailThreads(int threads) {
+        thumbnailLoader.setThreads(threads);
+    }
+
+    /**
+     * Queries the current page in the background and shows it once the results arrive. Starting another search before
+     * then cancels this one, and the returned future completes once that search is shown instead.
+     *
+     * @return A future that completes on the FX thread once the page is shown
+     */
+    CompletableFuture<Void> updateSearchContents() {
+        if (db == null || !db.isConnected()) return CompletableFuture.completedFuture(null);
+        if (similarTo != null) return updateSimilarContents();
+
+        final PageQuery query = new PageQuery(new OrderBy(primaryOrder, primaryOrderDescending, secondaryOrder, secondaryOrderDescending), searchTags, searchFilePath, pageNum, pageLength, seekPaging, pageCursors);
+        final CompletableFuture<Void> shown = asyncDb.search(query::run).thenAcceptAsync(images -> {
+            pageCursors.putAll(query.found);
+            showSearchContents(images);
+        }, AsyncDBInterface.FX);
+        shown.exceptionally(ex -> {
+            Main.showDatabaseError("Error retrieving images from database", ex);
+            return null;
+        });
+        return replacePendingContents(shown);
+    }
+
+    /**
+     * Makes the given search the latest one. Whoever is still waiting on a search it cancelled, such as the
+     * continuation of a page change interrupted by a database change, is completed once this one is shown instead.
+     */
+    private CompletableFuture<Void> replacePendingContents(CompletableFuture<Void> shown) {
+        final CompletableFuture<Void> previous = pendingContents;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        pendingContents = result;
+
+        shown.whenComplete((v, ex) -> {
+            //A cancelled search is completed by the search that replaced it
+            if (ex != null && AsyncDBInterface.getCause(ex) instanceof CancellationException) return;
+
+            if (ex != null) result.completeExceptionally(ex);
+            else result.complete(null);
+        });
+        if (previous != null && !previous.isDone()) {
+            result.whenComplete((v, ex) -> {
+                if (ex != null) previous.completeExceptionally(ex);
+                else previous.complete(null);
+            });
+        }
+
+        return result;
+    }
+
+    private CompletableFuture<Void> updateSimilarContents() {
+        final ImageInfo img = similarTo;
+        final SimilarImageIndex index = similarIndex;
+        final int from = pageLength * pageNum, to = from + pageLength;
+
+        final CompletableFuture<Void> shown = asyncDb.search(db -> {
+            final List<ImageInfo> nearest = index.findNearest(img, to);
+            return new ArrayList<>(nearest.subList(Math.min(from, nearest.size()), nearest.size()));
+        }).thenAcceptAsync(this::showSearchContents, AsyncDBInterface.FX);
+        shown.exceptionally(ex -> {
+            Main.showDatabaseError("Error finding similar images", ex);
+            return null;
+        });
+        return replacePendingContents(shown);
+    }
+
+    private void showSearchContents(ArrayList<ImageInfo> images) {
+        //Thumbnails on the page stay in memory however many others are loaded
+        final List<Integer> ids = new ArrayList<>(images.size());
+        images.forEach(img -> ids.add(img.getId()));
+        ImageInfo.THUMBNAILS.pin(ids);
+
         ArrayList<GridImageView> pool = (ArrayList<GridImageView>) imageViews.clone();
         ArrayList<GridImageView> needed = new ArrayList<>();
         imageViews.clear();
@@ -471,6 +701,7 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
                     createNewGridView(i, img);
                 } else {
                     grid = pool.get(0);
+                    thumbnailLoader.cancel(grid);
                     grid.unloadThumbnail();
                     grid.setInfo(img);
                     pool.remove(0);
@@ -481,6 +712,7 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
 
             i++;
         }
+        pool.forEach(thumbnailLoader::cancel);
 
 //        int i = 0;
 //        for (ImageInfo image : images) {
@@ -507,10 +739,89 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
             if (getLastSelected() == null) previewListener.preview(null);
             else previewListener.preview(getLastSelected().getInfo());
         }
+        //The grid jumps to the new page, which is not scrolling
+        lastContentY = Double.NaN;
+        scrollVelocity = 0;
         updateVisibleThumbnails();
 
     }
 
+    /**
+     * Snapshot of the search parameters, so a page can be queried off the FX thread while they change.
+     */
+    private static class PageQuery {
+
+        private final OrderBy order;
+        private final String[] tags;
+        private final String pathContains;
+        private final int pageNum;
+        private final int pageLength;
+        private final int limit;
+        private final boolean seekPaging;
+        private final HashMap<Integer, PageCursor> known;
+
+        /**
+         * Cursors learned by the query, keyed by the page that ends on them.
+         */
+        private final HashMap<Integer, PageCursor> found = new HashMap<>();
+
+
+        private PageQuery(OrderBy order, String[] tags, String pathContains, int pageNum, int pageLength, boolean seekPaging, Map<Integer, PageCursor> known) {
+            this(order, tags, pathContains, pageNum, pageLength, pageLength, seekPaging, known);
+        }
+
+        /**
+         * @param limit Number of images to read from the start of the page, at most pageLength
+         */
+        private PageQuery(OrderBy order, String[] tags, String pathContains, int pageNum, int pageLength, int limit, boolean seekPaging, Map<Integer, PageCursor> known) {
+            this.order = order;
+            this.tags = tags;
+            this.pathContains = pathContains;
+            this.pageNum = pageNum;
+            this.pageLength = pageLength;
+            this.limit = limit;
+            this.seekPaging = seekPaging;
+            this.known = new HashMap<>(known);
+        }
+
+        private ArrayList<ImageInfo> run(DBInterface db) throws SQLException {
+            ArrayList<ImageInfo> images;
+            if (seekPaging && pageNum > 0) {
+                PageCursor start = getPageStartCursor(db);
+                if (start == null) images = new ArrayList<>();
+                else images = db.getImages(limit, start, order, tags, pathContains);
+            } else {
+                images = db.getImages(limit, pageLength * pageNum, order, tags, pathContains);
+            }
+            //Only a whole page ends on its last row
+            if (seekPaging && !images.isEmpty() && limit == pageLength) {
+                PageCursor end = db.getPageCursor(images.get(images.size() - 1), order);
+                if (end != null) found.put(pageNum, end);
+            }
+            return images;
+        }
+
+        /**
+         * Finds the cursor of the last row before the page. Pages that were visited before remember their last row, so
+         * stepping through pages seeks from the previous page and a jump only has to count rows from the nearest
+         * remembered page.
+         *
+         * @return The cursor, or null if the page is past the end of the results
+         */
+        private PageCursor getPageStartCursor(DBInterface db) throws SQLException {
+            PageCursor cursor = known.get(pageNum - 1);
+            if (cursor != null) return cursor;
+
+            int from = pageNum - 2;
+            while (from >= 0 && !known.containsKey(from)) from--;
+
+            cursor = db.getPageCursor(from >= 0 ? known.get(from) : null, (pageNum - 1 - from) * pageLength - 1, order, tags, pathContains);
+            if (cursor != null) found.put(pageNum - 1, cursor);
+            return cursor;
+        }
+
+    }
+
     void updateWidth(double width) {
         final int cols = columnWidth();
         final int targetCols = (int) (width / 155);
@@ -556,8 +867,9 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
                 selected.forEach(item -> files.add(item.getInfo().getPath()));
                 MainController.clipboard.putFiles(files);
                 db.setContent(MainController.clipboard);
-                if (getLastSelected().getInfo().getThumbnail().getProgress() == 1.0) {
-                    db.setDragView(getLastSelected().getInfo().getThumbnail());
+                final Image thumbnail = getLastSelected().getInfo().getCachedThumbnail();
+                if (thumbnail != null) {
+                    db.setDragView(thumbnail);
                 } else {
                     db.setDragView(new Image(getLastSelected().getInfo().getPath().toURI().toString(), ImageInfo.THUMBNAIL_SIZE, ImageInfo.THUMBNAIL_SIZE, true, false));
                 }
@@ -576,9 +888,51 @@ public class DatabaseImageGridPane extends GridPane implements ImageDatabaseUpda
         return view;
     }
 
+    /**
+     * Applies a coalesced database change on the FX thread. The page is only queried again when the change could alter
+     * which images belong on it, otherwise only the cells of changed images are patched.
+     */
     @Override
-    public void databaseUpdated() {
-        updateSearchContents();
+    public void databaseUpdated(DatabaseChange change) {
+        if (isPageAffected(change)) {
+            //Rows may have moved between pages, only keep the cursor the current page starts from
+            final PageCursor start = pageCursors.get(pageNum - 1);
+            pageCursors.clear();
+            if (start != null) pageCursors.put(pageNum - 1, start);
+
+            updateSearchContents();
+            return;
+        }
+
+        if (change.hasChanged(DatabaseChange.Field.PATH)) {
+            for (GridImageView view : imageViews) {
+                if (change.getUpdated().contains(view.getInfo().getId())) {
+                    thumbnailLoader.cancel(view);
+                    view.unloadThumbnail();
+                }
+            }
+            updateVisibleThumbnails();
+        }
+    }
+
+    private boolean isPageAffected(DatabaseChange change) {
+        //New rows could sort anywhere, including onto this page
+        if (change.isReset() || !change.getAdded().isEmpty()) return true;
+
+        for (GridImageView view : imageViews) {
+            if (change.getRemoved().contains(view.getInfo().getId())) return true;
+        }
+        //Removing rows before an offset shifts the page, a seek from a cursor is unaffected
+        if (!change.getRemoved().isEmpty() && !seekPaging && pageNum > 0) return true;
+
+        if (change.getUpdated().isEmpty()) return false;
+        if (change.hasChanged(DatabaseChange.Field.TAGS) && searchTags != null) return true;
+        if (change.hasChanged(DatabaseChange.Field.PATH) && ((searchFilePath != null && !searchFilePath.isEmpty()) || isOrderedBy("img_path"))) return true;
+        return change.hasChanged(DatabaseChange.Field.SOURCE) && isOrderedBy("img_src");
+    }
+
+    private boolean isOrderedBy(String column) {
+        return primaryOrder.equals(column) || secondaryOrder.equals(column);
     }
 
 }
@@ -4,14 +4,24 @@ package manimage.main;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.control.SplitPane;
+import javafx.scene.control.ToggleButton;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.stage.Screen;
+import manimage.common.AsyncDBInterface;
 import manimage.common.DBInterface;
+import manimage.common.DuplicateCluster;
 import manimage.common.ImageInfo;
+import manimage.common.ImageMetadata;
 import manimage.common.SimilarPair;
 
 import java.sql.SQLException;
@@ -19,6 +29,11 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 public class DuplicateResolverController {
 
@@ -32,16 +47,73 @@ public class DuplicateResolverController {
     public Label rightPathLabel;
     public HBox imageHBox;
     public SplitPane root;
+    public ScrollPane clusterScrollPane;
+    public FlowPane clusterFlowPane;
+    public Button deleteLeftButton;
+    public Button deleteRightButton;
+    public Button keepButton;
+    public ToggleButton clusterToggle;
+
+    private static final int PAGE_SIZE = 100;
+    private static final int CLUSTER_PAGE_SIZE = 20;
+
+    /**
+     * Number of pairs past the current one whose images are decoded ahead of time.
+     */
+    private static final int PREFETCH = 5;
+
+    /**
+     * Previews are decoded at a multiple of this size, so resizing the window doesn't decode them again at every step.
+     */
+    private static final int PREVIEW_STEP = 256;
 
     private int index = -1;
     private final ArrayList<SimilarPair> dataset = new ArrayList<>();
     private DBInterface db;
+    private AsyncDBInterface asyncDb;
+    private ImagePreloader preloader;
+
+    /**
+     * Full heights of the shown images, which are usually decoded smaller than they are.
+     */
+    private double leftFullHeight, rightFullHeight;
+    private int previewSize = 0;
+
+    /**
+     * True if the dataset is paged in from the stored duplicate pairs instead of given up front.
+     */
+    private boolean paged = false;
+    private boolean exhausted = true;
+    private SimilarPair lastLoaded = null;
+
+    /**
+     * Number of stored pairs and clusters, counted once in the background and then kept up to date locally. Negative
+     * until counted.
+     */
+    private int total = -1;
+    private int clusterTotal = -1;
+
+    /**
+     * True if whole clusters of duplicates are shown at once instead of one pair at a time.
+     */
+    private boolean clusterMode = false;
+    private int clusterIndex = -1;
+    private final ArrayList<DuplicateCluster> clusters = new ArrayList<>();
+    private final List<CheckBox> deleteCheckBoxes = new ArrayList<>();
+    private boolean clustersLoaded = false;
+    private boolean clustersExhausted = true;
+    private int lastClusterLoaded = -1;
+
+    /**
+     * True while a delete or dismissal is being written, further ones are ignored until it finishes.
+     */
+    private boolean writing = false;
 
     @FXML
     public void initialize() {
         ArrayList<SimilarPair> pairs = new ArrayList<>();
         pairs.add(new SimilarPair(new ImageInfo(1, 1, null, "D:\\(cjdrfr)\\cj\\New folder\\waif.png", null), new ImageInfo(2, 2, null, "D:\\(cjdrfr)\\cj\\New folder\\Loli\\2043185 - Diamond_Tiara Friendship_is_Magic Maniacpaint My_Little_Pony Silver_Spoon.jpg", null), 81.3243242));
-        setDataset(db, pairs);
+        setDataset(asyncDb, pairs);
 
         Platform.runLater(() -> {
             leftImageView.getScene().getWindow().widthProperty().addListener((observable, oldValue, newValue) -> {
@@ -56,13 +128,297 @@ public class DuplicateResolverController {
         });
     }
 
-    void setDataset(DBInterface db, Iterable<SimilarPair> set) {
+    void setDataset(AsyncDBInterface asyncDb, Iterable<SimilarPair> set) {
+        setDatabase(asyncDb);
+        paged = false;
+        exhausted = true;
         dataset.clear();
         set.forEach(dataset::add);
         index = 0;
-        if (!dataset.isEmpty()) display(index);
-        else clearDisplay();
+        clustersLoaded = false;
+        showDataset();
+    }
+
+    /**
+     * Pages through the duplicate pairs stored by the library scan, most similar first.
+     */
+    void setStoredDataset(AsyncDBInterface asyncDb) {
+        setDatabase(asyncDb);
+        paged = true;
+        exhausted = false;
+        lastLoaded = null;
+        dataset.clear();
+        countStoredPairs();
+        loadNextPage();
+        index = 0;
+        clustersLoaded = false;
+        showDataset();
+    }
+
+    private void setDatabase(AsyncDBInterface asyncDb) {
+        final DBInterface db = asyncDb != null ? asyncDb.getDatabase() : null;
+        if (preloader == null || this.db != db) {
+            if (preloader != null) preloader.shutdown();
+            preloader = new ImagePreloader(db, 2 * (PREFETCH + 2));
+        }
         this.db = db;
+        this.asyncDb = asyncDb;
+    }
+
+    /**
+     * Stops decoding images in the background. Called once the window is closed.
+     */
+    void shutdown() {
+        if (preloader != null) preloader.shutdown();
+    }
+
+    private void showDataset() {
+        if (clusterMode) {
+            loadClusters();
+            showCurrentCluster();
+        } else {
+            showCurrent();
+        }
+    }
+
+    /**
+     * Switches between showing one pair at a time and showing a whole cluster of duplicates at once, where every image
+     * in the cluster is kept or deleted in one pass.
+     */
+    void setClusterMode(boolean clusterMode) {
+        this.clusterMode = clusterMode;
+        clusterToggle.setSelected(clusterMode);
+        imageHBox.setVisible(!clusterMode);
+        clusterScrollPane.setVisible(clusterMode);
+        deleteLeftButton.setDisable(clusterMode);
+        deleteRightButton.setDisable(clusterMode);
+        keepButton.setText(clusterMode ? "Apply" : "Keep Both");
+
+        if (clusterMode) {
+            leftPathLabel.setText("");
+            rightPathLabel.setText("");
+            leftInfoLabel.setText("");
+            rightInfoLabel.setText("");
+            if (!clustersLoaded) loadClusters();
+            showCurrentCluster();
+        } else {
+            clusterFlowPane.getChildren().clear();
+            deleteCheckBoxes.clear();
+            showCurrent();
+        }
+    }
+
+    /**
+     * Stored duplicates are paged in by their stored clusters, and a given set of pairs is grouped into clusters.
+     */
+    private void loadClusters() {
+        clustersLoaded = true;
+        clusters.clear();
+        clusterIndex = 0;
+        if (paged) {
+            clustersExhausted = false;
+            lastClusterLoaded = -1;
+            countStoredClusters();
+            loadNextClusterPage();
+        } else {
+            clustersExhausted = true;
+            clusters.addAll(DuplicateCluster.group(dataset));
+        }
+    }
+
+    private void loadNextClusterPage() {
+        if (!paged || clustersExhausted) return;
+
+        try {
+            final List<DuplicateCluster> page = db.getDuplicateClusters(CLUSTER_PAGE_SIZE, lastClusterLoaded);
+            if (page.size() < CLUSTER_PAGE_SIZE) clustersExhausted = true;
+            if (!page.isEmpty()) lastClusterLoaded = page.get(page.size() - 1).getId();
+            clusters.addAll(page);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Main.showErrorMessage("Unexpected Error", "Error reading duplicates from database", e.getLocalizedMessage());
+            clustersExhausted = true;
+        }
+    }
+
+    private int getClusterTotal() {
+        return paged && clusterTotal >= 0 ? clusterTotal : clusters.size();
+    }
+
+    private void countStoredClusters() {
+        clusterTotal = -1;
+        final AsyncDBInterface counted = asyncDb;
+        asyncDb.read(DBInterface::getNumDuplicateClusters).thenAcceptAsync(count -> {
+            if (asyncDb != counted || !paged) return;
+            clusterTotal = count;
+            if (clusterMode && clusterIndex >= 0) countLabel.setText(clusterIndex + 1 + "/" + getClusterTotal());
+        }, AsyncDBInterface.FX).exceptionally(ex -> {
+            AsyncDBInterface.getCause(ex).printStackTrace();
+            return null;
+        });
+    }
+
+    private void showCurrentCluster() {
+        if (clusterIndex >= clusters.size() - 1) loadNextClusterPage();
+        if (clusterIndex >= clusters.size()) clusterIndex = clusters.size() - 1;
+
+        clusterFlowPane.getChildren().clear();
+        deleteCheckBoxes.clear();
+        if (clusterIndex < 0) {
+            similarityLabel.setText("0%");
+            countLabel.setText("0/0");
+            return;
+        }
+
+        final DuplicateCluster cluster = clusters.get(clusterIndex);
+        similarityLabel.setText(cluster.getImages().size() + " images, up to " + new DecimalFormat("#.##").format(cluster.getSimilarity() * 100) + "%");
+        countLabel.setText(clusterIndex + 1 + "/" + getClusterTotal());
+
+        //Thumbnails only, so a large cluster doesn't decode every image at full size
+        for (ImageInfo img : cluster.getImages()) {
+            final ImageView view = new ImageView();
+            preloader.loadThumbnail(img).thenAcceptAsync(view::setImage, AsyncDBInterface.FX).exceptionally(ex -> {
+                AsyncDBInterface.getCause(ex).printStackTrace();
+                return null;
+            });
+            final Label name = new Label(img.getPath().getName());
+            name.setMaxWidth(ImageInfo.THUMBNAIL_SIZE);
+            final CheckBox delete = new CheckBox("Delete");
+            delete.setFocusTraversable(false);
+            deleteCheckBoxes.add(delete);
+
+            final VBox cell = new VBox(5, view, name, delete);
+            cell.setPrefWidth(ImageInfo.THUMBNAIL_SIZE);
+            cell.setOnMouseClicked(event -> delete.setSelected(!delete.isSelected()));
+            clusterFlowPane.getChildren().add(cell);
+        }
+
+        //File sizes are filled in once read, the labels of a cluster that is no longer shown don't matter
+        final List<CheckBox> checkBoxes = new ArrayList<>(deleteCheckBoxes);
+        preloader.loadFileSizes(cluster.getImages()).thenAcceptAsync(sizes -> {
+            for (int i = 0; i < checkBoxes.size(); i++) {
+                final Long size = sizes.get(cluster.getImages().get(i).getId());
+                if (size != null) checkBoxes.get(i).setText("Delete (" + getSizeString(size) + ")");
+            }
+        }, AsyncDBInterface.FX).exceptionally(ex -> {
+            AsyncDBInterface.getCause(ex).printStackTrace();
+            return null;
+        });
+    }
+
+    private void nextCluster() {
+        if (clusterIndex >= clusters.size() - 1) loadNextClusterPage();
+        if (clusterIndex < clusters.size() - 1) {
+            clusterIndex++;
+            showCurrentCluster();
+        }
+    }
+
+    private void previousCluster() {
+        if (clusterIndex > 0) {
+            clusterIndex--;
+            showCurrentCluster();
+        }
+    }
+
+    /**
+     * Deletes the checked images of the current cluster and marks the rest as not being duplicates of each other.
+     */
+    private void applyCluster() {
+        if (clusterIndex < 0 || writing) return;
+
+        final DuplicateCluster cluster = clusters.get(clusterIndex);
+        final List<ImageInfo> delete = new ArrayList<>(), keep = new ArrayList<>();
+        for (int i = 0; i < cluster.getImages().size(); i++) {
+            (deleteCheckBoxes.get(i).isSelected() ? delete : keep).add(cluster.getImages().get(i));
+        }
+
+        write(db -> {
+            if (!delete.isEmpty()) {
+                db.removeImgs(delete);
+                delete.forEach(img -> img.getPath().delete());
+            }
+            db.dismissDuplicatePairs(keep);
+            return null;
+        }, () -> {
+            delete.forEach(preloader::forget);
+
+            //Every pair that touches a cluster lies within it
+            final Set<ImageInfo> members = new HashSet<>(cluster.getImages());
+            removePairs(pair -> members.contains(pair.getImage1()));
+            if (index >= dataset.size()) index = dataset.size() - 1;
+            clusters.remove(cluster);
+            if (clusterTotal > 0) clusterTotal--;
+            if (clusterMode) showCurrentCluster();
+        }, "Error resolving duplicates");
+    }
+
+    /**
+     * Runs a write in the background and then applies it to the shown dataset on the FX thread, so the window doesn't
+     * wait for the writer connection while an import or scan holds it.
+     */
+    private void write(AsyncDBInterface.DBCall<Void> call, Runnable then, String errorHeader) {
+        writing = true;
+        asyncDb.write(call).whenCompleteAsync((v, ex) -> {
+            writing = false;
+            if (ex != null) {
+                final Throwable cause = AsyncDBInterface.getCause(ex);
+                cause.printStackTrace();
+                Main.showErrorMessage("Unexpected Error", errorHeader, cause.getLocalizedMessage());
+            } else {
+                then.run();
+            }
+        }, AsyncDBInterface.FX);
+    }
+
+    private void loadNextPage() {
+        if (!paged || exhausted) return;
+
+        try {
+            final List<SimilarPair> page = db.getDuplicatePairs(PAGE_SIZE, lastLoaded);
+            if (page.size() < PAGE_SIZE) exhausted = true;
+            if (!page.isEmpty()) lastLoaded = page.get(page.size() - 1);
+            dataset.addAll(page);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Main.showErrorMessage("Unexpected Error", "Error reading duplicates from database", e.getLocalizedMessage());
+            exhausted = true;
+        }
+    }
+
+    private int getTotal() {
+        return paged && total >= 0 ? total : dataset.size();
+    }
+
+    private void countStoredPairs() {
+        total = -1;
+        final AsyncDBInterface counted = asyncDb;
+        asyncDb.read(DBInterface::getNumDuplicatePairs).thenAcceptAsync(count -> {
+            if (asyncDb != counted || !paged) return;
+            total = count;
+            if (!clusterMode && index >= 0) countLabel.setText(index + 1 + "/" + getTotal());
+        }, AsyncDBInterface.FX).exceptionally(ex -> {
+            AsyncDBInterface.getCause(ex).printStackTrace();
+            return null;
+        });
+    }
+
+    /**
+     * Removes pairs from the dataset and from the stored total, so the total doesn't need counting again. Pairs of a
+     * deleted image that were not paged in yet are still counted until the dataset is opened again.
+     */
+    private void removePairs(Predicate<SimilarPair> filter) {
+        final int before = dataset.size();
+        dataset.removeIf(filter);
+        if (total >= 0) total = Math.max(0, total - (before - dataset.size()));
+    }
+
+    private void showCurrent() {
+        if (index >= dataset.size() - 1) loadNextPage();
+        if (index >= dataset.size()) index = dataset.size() - 1;
+
+        if (index >= 0) display(index);
+        else clearDisplay();
     }
 
     private void clearDisplay() {
@@ -74,28 +430,98 @@ public class DuplicateResolverController {
         leftInfoLabel.setText("...");
         rightInfoLabel.setText("...");
         similarityLabel.setText("0%");
+        countLabel.setText("0/0");
     }
 
+    /**
+     * Shows a pair, decoding its images in the background unless they were already prefetched, and starts decoding the
+     * pairs after it.
+     */
     private void display(int i) {
         SimilarPair pair = dataset.get(i);
         similarityLabel.setText(new DecimalFormat("#.##").format(pair.getSimilarity() * 100) + "%");
-        leftImageView.setImage(pair.getImage1().getImage(false));
-        rightImageView.setImage(pair.getImage2().getImage(false));
         leftPathLabel.setText(pair.getImage1().getPath().getAbsolutePath());
         rightPathLabel.setText(pair.getImage2().getPath().getAbsolutePath());
-        countLabel.setText(i+1 + "/" + dataset.size());
+        countLabel.setText(i+1 + "/" + getTotal());
+        displayPreviews(i);
+    }
 
-        double size = pair.getImage1().getPath().length()/1024.0;
-        String sizeString = new DecimalFormat("#.##").format(size) + "KB";
-        if (size > 1024) sizeString = new DecimalFormat("#.##").format(size/1024.0) + "MB";
-        leftInfoLabel.setText(sizeString + " (" + (int) pair.getImage1().getImage(false).getWidth() + "x" + (int) pair.getImage1().getImage(false).getHeight() + ")");
-        size = pair.getImage2().getPath().length()/1024.0;
-        sizeString = new DecimalFormat("#.##").format(size) + "KB";
-        if (size > 1024) sizeString = new DecimalFormat("#.##").format(size/1024.0) + "MB";
-        rightInfoLabel.setText(sizeString + " (" + (int) pair.getImage2().getImage(false).getWidth() + "x" + (int) pair.getImage2().getImage(false).getHeight() + ")");
+    private void displayPreviews(int i) {
+        final SimilarPair pair = dataset.get(i);
+        final int size = previewSize = getPreviewSize();
+        displayPreview(i, preloader.load(pair.getImage1(), size), true);
+        displayPreview(i, preloader.load(pair.getImage2(), size), false);
+
+        final List<ImageInfo> upcoming = new ArrayList<>();
+        for (int j = i + 1; j < dataset.size() && j <= i + PREFETCH; j++) {
+            upcoming.add(dataset.get(j).getImage1());
+            upcoming.add(dataset.get(j).getImage2());
+        }
+        //One back as well, for stepping back and forth between neighbouring pairs
+        if (i > 0) {
+            upcoming.add(dataset.get(i - 1).getImage1());
+            upcoming.add(dataset.get(i - 1).getImage2());
+        }
+        preloader.prefetch(upcoming, size);
+    }
+
+    private void displayPreview(int i, CompletableFuture<ImagePreloader.Preview> future, boolean left) {
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            showPreview(future.join(), left);
+            return;
+        }
+
+        (left ? leftImageView : rightImageView).setImage(null);
+        (left ? leftInfoLabel : rightInfoLabel).setText("...");
+        future.whenCompleteAsync((loaded, ex) -> {
+            //Skip images of a pair that is no longer shown
+            if (index != i || clusterMode) return;
+
+            if (ex != null) {
+                AsyncDBInterface.getCause(ex).printStackTrace();
+                (left ? leftInfoLabel : rightInfoLabel).setText("Failed to load image");
+            } else {
+                showPreview(loaded, left);
+            }
+        }, AsyncDBInterface.FX);
+    }
+
+    private void showPreview(ImagePreloader.Preview preview, boolean left) {
+        final ImageMetadata metadata = preview.getMetadata();
+        String info = getSizeString(metadata.getFileSize());
+        if (metadata.getWidth() > 0) info += " (" + metadata.getWidth() + "x" + metadata.getHeight() + ")";
+        if (preview.getImage() == null) info += " - could not be decoded";
+
+        final double fullHeight = metadata.getHeight() > 0 ? metadata.getHeight() : preview.getImage() != null ? preview.getImage().getHeight() : 0;
+        if (left) {
+            leftImageView.setImage(preview.getImage());
+            leftInfoLabel.setText(info);
+            leftFullHeight = fullHeight;
+        } else {
+            rightImageView.setImage(preview.getImage());
+            rightInfoLabel.setText(info);
+            rightFullHeight = fullHeight;
+        }
+        updateImageHeight((int) imageHBox.getHeight());
+    }
+
+    /**
+     * @return Size of the longer side to decode shown images at, about the largest they can be shown at in the window
+     */
+    private int getPreviewSize() {
+        double size = Math.max(imageHBox.getWidth() / 2, imageHBox.getHeight());
+        if (size <= 0) size = Screen.getPrimary().getVisualBounds().getWidth() * 0.4;
+        return (int) Math.ceil(size / PREVIEW_STEP) * PREVIEW_STEP;
+    }
+
+    private static String getSizeString(long bytes) {
+        final double size = bytes/1024.0;
+        if (size > 1024) return new DecimalFormat("#.##").format(size/1024.0) + "MB";
+        return new DecimalFormat("#.##").format(size) + "KB";
     }
 
     private void nextPair() {
+        if (index >= dataset.size() - 1) loadNextPage();
         if (index < dataset.size() - 1) display(++index);
     }
 
@@ -111,51 +537,71 @@ public class DuplicateResolverController {
     private void updateImageWidth(int width) {
         leftImageView.setFitWidth(width / 2);
         rightImageView.setFitWidth(width / 2);
+
+        //Decode the shown pair again if the window grew past the size it was decoded at
+        if (!clusterMode && index >= 0 && index < dataset.size() && getPreviewSize() > previewSize) displayPreviews(index);
     }
 
     private void updateImageHeight(int height) {
-        if (leftImageView.getImage() != null && rightImageView.getImage() != null) {
-            if (leftImageView.getImage().getHeight() > height) leftImageView.setFitHeight(height);
-            else leftImageView.setFitHeight(leftImageView.getImage().getHeight());
-            if (rightImageView.getImage().getHeight() > height) rightImageView.setFitHeight(height);
-            else rightImageView.setFitHeight(rightImageView.getImage().getHeight());
-        }
+        if (leftImageView.getImage() != null) leftImageView.setFitHeight(Math.min(leftFullHeight, height));
+        if (rightImageView.getImage() != null) rightImageView.setFitHeight(Math.min(rightFullHeight, height));
     }
 
     public void onDeleteRightAction(ActionEvent event) {
-        try {
-            ImageInfo img = dataset.get(index).getImage2();
-            db.removeImgs(Collections.singletonList(img));
-            img.getPath().delete();
+        if (index < 0 || writing) return;
 
-            dataset.removeIf(similarPair -> similarPair.getImage1() == img || similarPair.getImage2() == img);
-            display(index);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            Main.showErrorMessage("Unexpected Error", "Error removing image from database", e.getLocalizedMessage());
-        }
+        deleteImage(dataset.get(index).getImage2());
     }
 
     public void onDeleteLeftAction(ActionEvent event) {
-        try {
-            ImageInfo img = dataset.get(index).getImage1();
+        if (index < 0 || writing) return;
+
+        deleteImage(dataset.get(index).getImage1());
+    }
+
+    private void deleteImage(ImageInfo img) {
+        write(db -> {
             db.removeImgs(Collections.singletonList(img));
             img.getPath().delete();
+            return null;
+        }, () -> {
+            preloader.forget(img);
+            removePairs(similarPair -> similarPair.getImage1() == img || similarPair.getImage2() == img);
+            clustersLoaded = false;
+            if (!clusterMode) showCurrent();
+        }, "Error removing image from database");
+    }
 
-            dataset.removeIf(similarPair -> similarPair.getImage1() == img || similarPair.getImage2() == img);
-            display(index);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            Main.showErrorMessage("Unexpected Error", "Error removing image from database", e.getLocalizedMessage());
+    public void onKeepBothAction(ActionEvent event) {
+        if (clusterMode) {
+            applyCluster();
+            return;
         }
+        if (index < 0 || writing) return;
+
+        final SimilarPair pair = dataset.get(index);
+        write(db -> {
+            db.dismissDuplicatePair(pair.getImage1(), pair.getImage2());
+            return null;
+        }, () -> {
+            removePairs(similarPair -> similarPair == pair);
+            clustersLoaded = false;
+            if (!clusterMode) showCurrent();
+        }, "Error dismissing duplicate pair");
     }
 
     public void onPreviousAction(ActionEvent event) {
-        previousPair();
+        if (clusterMode) previousCluster();
+        else previousPair();
     }
 
     public void onNextAction(ActionEvent event) {
-        nextPair();
+        if (clusterMode) nextCluster();
+        else nextPair();
+    }
+
+    public void onClusterToggleAction(ActionEvent event) {
+        setClusterMode(clusterToggle.isSelected());
     }
 
     public void onRootKeyPressed(KeyEvent event) {
@@ -163,10 +609,10 @@ public class DuplicateResolverController {
             root.getScene().getWindow().hide();
             event.consume();
         } else if (event.getCode() == KeyCode.LEFT) {
-            previousPair();
+            onPreviousAction(null);
             event.consume();
         } else if (event.getCode() == KeyCode.RIGHT) {
-            nextPair();
+            onNextAction(null);
             event.consume();
         }
     }
@@ -2,6 +2,7 @@ package manimage.main;
 
 
 import javafx.geometry.Insets;
+import javafx.scene.image.Image;
 import javafx.scene.layout.BorderPane;
 import manimage.common.ImageInfo;
 
@@ -12,6 +13,7 @@ public class GridImageView extends BorderPane {
     private DynamicImageView view;
 
     private boolean selected = false;
+    private boolean thumbnailLoaded = false;
 
     private static final String selectedBackgroundColor = "5588AA";
     private static final String backgroundColor = "DDDDDD";
@@ -36,17 +38,24 @@ public class GridImageView extends BorderPane {
         this.info = info;
     }
 
-    void loadThumbnail() {
-        view.setImage(info.getThumbnail());
+    /**
+     * @param thumbnail Thumbnail of the current image, or null if it could not be loaded
+     */
+    void setThumbnail(Image thumbnail) {
+        view.setImage(thumbnail);
+        thumbnailLoaded = true;
     }
 
     void unloadThumbnail() {
-        if (info != null && info.getThumbnail().getProgress() != 1) info.cancelLoadingThumbnail();
         view.setImage(null);
+        thumbnailLoaded = false;
     }
 
+    /**
+     * @return True if the thumbnail has been loaded, or failed to load, since the cell last changed image
+     */
     boolean isThumbnailLoaded() {
-        return view.getImage() != null;
+        return thumbnailLoaded;
     }
 
     void setSelected(boolean n) {
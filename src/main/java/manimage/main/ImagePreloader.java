@@ -0,0 +1,192 @@
+package manimage.main;
+
+
+import javafx.scene.image.Image;
+import manimage.common.DBInterface;
+import manimage.common.ImageDecoder;
+import manimage.common.ImageInfo;
+import manimage.common.ImageMetadata;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes previews of images in the background, scaled down to about the size they are shown at, along with their
+ * file size and full size. Recently requested previews are kept in a bounded cache, so images can be loaded ahead of
+ * time and shown without waiting when they are reached.
+ */
+class ImagePreloader {
+
+    /**
+     * A decoded preview with the metadata of the full size image.
+     */
+    static final class Preview {
+
+        private final Image image;
+        private final ImageMetadata metadata;
+        private final int size;
+
+
+        private Preview(Image image, ImageMetadata metadata, int size) {
+            this.image = image;
+            this.metadata = metadata;
+            this.size = size;
+        }
+
+        /**
+         * @return The decoded image, or null if it could not be decoded
+         */
+        Image getImage() {
+            return image;
+        }
+
+        ImageMetadata getMetadata() {
+            return metadata;
+        }
+
+    }
+
+    private final DBInterface db;
+    private final ExecutorService executor;
+    private final Map<Integer, CompletableFuture<Preview>> cache;
+
+
+    /**
+     * @param capacity Most previews kept, including ones still loading
+     */
+    ImagePreloader(DBInterface db, int capacity) {
+        this.db = db;
+
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "Image Preloader " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        cache = Collections.synchronizedMap(new LinkedHashMap<Integer, CompletableFuture<Preview>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CompletableFuture<Preview>> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * Gets a preview of an image, decoding it in the background unless a large enough preview is already cached.
+     *
+     * @param size Size of the longer side the image will be shown at
+     * @return A future that completes with the preview
+     */
+    CompletableFuture<Preview> load(ImageInfo img, int size) {
+        synchronized (cache) {
+            final CompletableFuture<Preview> cached = cache.get(img.getId());
+            if (cached != null && (!cached.isDone() || (!cached.isCompletedExceptionally() && cached.join().size >= size))) return cached;
+
+            final CompletableFuture<Preview> future = CompletableFuture.supplyAsync(() -> decode(img, size), executor);
+            cache.put(img.getId(), future);
+            //A failed load is tried again the next time it is asked for instead of failing from the cache
+            future.whenComplete((preview, ex) -> {
+                if (ex != null) cache.remove(img.getId(), future);
+            });
+            return future;
+        }
+    }
+
+    /**
+     * Reads or decodes the thumbnail of an image in the background, the same way the grid does.
+     *
+     * @return A future that completes with the thumbnail, or null if it could not be decoded
+     */
+    CompletableFuture<Image> loadThumbnail(ImageInfo img) {
+        final Image cached = img.getCachedThumbnail();
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        return CompletableFuture.supplyAsync(img::readThumbnail, executor);
+    }
+
+    /**
+     * Reads the file sizes of images in the background, as recorded when they were fingerprinted or else from the files.
+     *
+     * @return A future that completes with file sizes keyed by image id
+     */
+    CompletableFuture<Map<Integer, Long>> loadFileSizes(List<ImageInfo> imgs) {
+        return CompletableFuture.supplyAsync(() -> {
+            Map<Integer, ImageMetadata> metadata = Collections.emptyMap();
+            if (db != null) {
+                final List<Integer> ids = new ArrayList<>(imgs.size());
+                imgs.forEach(img -> ids.add(img.getId()));
+                try {
+                    metadata = db.getImageMetadata(ids);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            final Map<Integer, Long> sizes = new HashMap<>();
+            for (ImageInfo img : imgs) {
+                final ImageMetadata info = metadata.get(img.getId());
+                sizes.put(img.getId(), info != null ? info.getFileSize() : img.getPath().length());
+            }
+            return sizes;
+        }, executor);
+    }
+
+    /**
+     * Starts loading previews of images that will likely be shown soon.
+     */
+    void prefetch(Iterable<ImageInfo> imgs, int size) {
+        imgs.forEach(img -> load(img, size));
+    }
+
+    /**
+     * Drops the preview of an image that won't be shown again, such as one that was deleted.
+     */
+    void forget(ImageInfo img) {
+        cache.remove(img.getId());
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        cache.clear();
+    }
+
+    private Preview decode(ImageInfo img, int size) {
+        return new Preview(img.decode(size, size), readMetadata(img), size);
+    }
+
+    /**
+     * Metadata recorded when the image was fingerprinted, falling back to the file and its header for anything missing.
+     */
+    private ImageMetadata readMetadata(ImageInfo img) {
+        ImageMetadata metadata = null;
+        if (db != null) {
+            try {
+                metadata = db.getImageMetadata(Collections.singletonList(img.getId())).get(img.getId());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        if (metadata != null && metadata.getWidth() > 0) return metadata;
+
+        final long fileSize = metadata != null ? metadata.getFileSize() : img.getPath().length();
+        try {
+            final Dimension dimension = ImageDecoder.readSize(img.getPath());
+            if (dimension != null) return new ImageMetadata(fileSize, dimension.width, dimension.height);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new ImageMetadata(fileSize, 0, 0);
+    }
+
+}
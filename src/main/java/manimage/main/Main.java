@@ -11,11 +11,13 @@ import javafx.scene.control.ButtonType;
 import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
+import manimage.common.AsyncDBInterface;
 import uk.co.caprica.vlcj.binding.LibVlc;
 import uk.co.caprica.vlcj.discovery.NativeDiscovery;
 
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 public class Main extends Application {
 
@@ -49,6 +51,18 @@ public class Main extends Application {
         a.showAndWait();
     }
 
+    /**
+     * Reports a failed database task from any thread. Tasks that were cancelled because a newer one replaced them are
+     * ignored.
+     */
+    public static void showDatabaseError(String header, Throwable t) {
+        final Throwable cause = AsyncDBInterface.getCause(t);
+        if (cause instanceof CancellationException) return;
+
+        cause.printStackTrace();
+        Platform.runLater(() -> showErrorMessage("Unexpected Error", header, cause.getLocalizedMessage()));
+    }
+
     @Override
     public void start(Stage mainStage) {
 
@@ -13,6 +13,7 @@ import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.image.Image;
 import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.image.WritablePixelFormat;
@@ -23,9 +24,18 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
+import manimage.common.AsyncDBInterface;
 import manimage.common.DBInterface;
+import manimage.common.DatabaseChange;
+import manimage.common.DuplicateScanner;
+import manimage.common.FingerprintService;
+import manimage.common.HistogramLSH;
+import manimage.common.ImageHash;
+import manimage.common.ImageHistogram;
 import manimage.common.ImageInfo;
 import manimage.common.SimilarPair;
+import manimage.common.SimilarityEngine;
+import manimage.common.ThumbnailStore;
 import manimage.common.settings.Settings;
 import uk.co.caprica.vlcj.component.DirectMediaPlayerComponent;
 import uk.co.caprica.vlcj.player.direct.BufferFormat;
@@ -43,6 +53,10 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class MainController {
 
@@ -68,8 +82,24 @@ public class MainController {
     public ListView<String> tagTabListView;
 
     private DBInterface db;
+    private AsyncDBInterface asyncDb;
+    private FingerprintService fingerprints;
+    private ThumbnailStore thumbnailStore;
+    private DuplicateScanner duplicateScanner;
+    private final SimilarityEngine similarityEngine = new SimilarityEngine();
 
     private CanvasPlayerComponent mediaPlayerComponent;
+    private volatile ImageInfo previewing;
+
+    /**
+     * Decodes previewed images one at a time, skipping any that are no longer being previewed by the time their turn
+     * comes.
+     */
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Preview Decoder");
+        t.setDaemon(true);
+        return t;
+    });
 
 //    private File lastFolder;
 //    private File lastSaveFolder;
@@ -122,8 +152,24 @@ public class MainController {
             closeWindow();
         }
 
+        if (db != null) {
+            asyncDb = new AsyncDBInterface(db);
+            fingerprints = new FingerprintService(asyncDb);
+
+            try {
+                thumbnailStore = new ThumbnailStore(new File(dbPath + ".thumbs"));
+                db.addChangeListener(thumbnailStore);
+                ImageInfo.setThumbnailStore(thumbnailStore);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Main.showErrorMessage("Unexpected Error", "Error opening thumbnail cache", e.getLocalizedMessage());
+            }
+        }
+
         grid.setPreviewListener(this::preview);
-        grid.setDatabase(db);
+        grid.setPageListener(page -> pageNumTextfield.setText(page + ""));
+        grid.setDatabase(asyncDb);
+        if (db != null) db.addChangeListener(new CoalescingChangeListener(this::databaseUpdated));
         grid.setOrderBy("img_added", true, "img_id", true);
 
         ObservableList<String> items = FXCollections.observableArrayList("ID", "File path", "Time added", "Source URL");
@@ -183,18 +229,29 @@ public class MainController {
         });
 
         gridScrollPane.viewportBoundsProperty().addListener((observable, oldValue, newValue) -> grid.updateWidth(newValue.getWidth()));
+        //Dragging the scroll bar doesn't fire scroll events, so follow the scroll position itself
+        gridScrollPane.vvalueProperty().addListener((observable, oldValue, newValue) -> grid.updateVisibleThumbnails());
 
         initProperties();
+        if (db != null) {
+            db.setImportBatchSize(settings.getInt("import_batch_size", 1000));
+            duplicateScanner = new DuplicateScanner(db, fingerprints, ImageHash.getMaxDistance(settings.getDouble("duplicate_threshold", DuplicateScanner.DEFAULT_THRESHOLD)));
+            duplicateScanner.scan();
+        }
+        grid.setSeekPaging(settings.getBoolean("seek_paging", true));
+        updateImageCacheBudgets();
+        grid.setThumbnailThreads(settings.getInt("thumbnail_threads", SettingsController.getDefaultThumbnailThreads()));
 
         Platform.runLater(() -> {
             rootPane.getScene().getWindow().setOnCloseRequest(event -> {
                 closeWindow();
             });
-            grid.updateSearchContents();
-            if (grid.getCount() > 0) {
-                grid.select(grid.getImageViews().get(0), false, false);
-                preview(grid.getLastSelected().getInfo());
-            }
+            grid.updateSearchContents().thenRun(() -> {
+                if (grid.getCount() > 0) {
+                    grid.select(grid.getImageViews().get(0), false, false);
+                    preview(grid.getLastSelected().getInfo());
+                }
+            });
             grid.requestFocus();
         });
 
@@ -211,13 +268,9 @@ public class MainController {
 
                 settings.setString("last_folder", target.getParentFile().getAbsolutePath());
 
-                Platform.runLater(() -> {
-                    try {
-                        db.addImage(target.getAbsolutePath());
-                    } catch (SQLException e) {
-                        e.printStackTrace();
-                        Main.showErrorMessage("Unexpected Error", "Error adding image to database", e.getLocalizedMessage());
-                    }
+                asyncDb.addImage(target.getAbsolutePath()).exceptionally(ex -> {
+                    Main.showDatabaseError("Error adding image to database", ex);
+                    return null;
                 });
             } catch (IOException e) {
                 e.printStackTrace();
@@ -264,6 +317,7 @@ public class MainController {
             mediaPlayerComponent = null;
         }
 
+        previewing = info;
         if (info != null) {
             if (Main.IMAGE_FILTER.accept(info.getPath())) {
                 previewImage(info);
@@ -294,17 +348,50 @@ public class MainController {
     }
 
     private void previewImage(ImageInfo info) {
-        previewDynamicImageView.setImage(info.getImage(true));
-        try {
-            Map<String, Integer> tags = db.getTags();
-            tagTabListView.getItems().clear();
-            for (String tag : info.getTags()) {
-                tagTabListView.getItems().add(tag + " (" + tags.get(tag) + ")");
-            }
-            Collections.sort(tagTabListView.getItems());
-        } catch (SQLException e) {
-            e.printStackTrace();
-            Main.showErrorMessage("Unexpected Error", "Error retrieving tags list from database", e.getLocalizedMessage());
+        ImageInfo.IMAGES.pin(Collections.singletonList(info.getId()));
+        final Image cached = info.getCachedImage();
+        previewDynamicImageView.setImage(cached);
+        if (cached == null) {
+            //The preview never shows more pixels than the screen has, so decode no more than that
+            final Screen screen = Screen.getPrimary();
+            final int width = (int) (screen.getVisualBounds().getWidth() * screen.getOutputScaleX());
+            final int height = (int) (screen.getVisualBounds().getHeight() * screen.getOutputScaleY());
+            CompletableFuture.supplyAsync(() -> previewing == info ? info.readImage(width, height) : null, previewExecutor).whenCompleteAsync((img, ex) -> {
+                if (previewing != info) return;
+                if (img != null) {
+                    previewDynamicImageView.setImage(img);
+                    return;
+                }
+
+                //Nothing is shown, so nothing needs to stay in memory for it
+                ImageInfo.IMAGES.pin(Collections.emptyList());
+                if (ex != null) AsyncDBInterface.getCause(ex).printStackTrace();
+                Main.showErrorMessage("Error", "Failed to load image", info.getPath().getAbsolutePath());
+            }, AsyncDBInterface.FX);
+        }
+        updateTagList(info);
+    }
+
+    private void updateTagList(ImageInfo info) {
+        Map<String, Integer> tags = db.getTagCounts(Arrays.asList(info.getTags()));
+        tagTabListView.getItems().clear();
+        for (String tag : info.getTags()) {
+            tagTabListView.getItems().add(tag + " (" + tags.getOrDefault(tag, 0) + ")");
+        }
+        Collections.sort(tagTabListView.getItems());
+    }
+
+    /**
+     * Refreshes the tag list of the previewed image. Any tag edit or removal can change the counts it shows.
+     */
+    private void databaseUpdated(DatabaseChange change) {
+        if (duplicateScanner != null && (change.isReset() || !change.getAdded().isEmpty())) duplicateScanner.scan();
+
+        if (previewing == null || !Main.IMAGE_FILTER.accept(previewing.getPath())) return;
+        if (change.getRemoved().contains(previewing.getId())) return;
+
+        if (change.isReset() || change.hasChanged(DatabaseChange.Field.TAGS) || !change.getAdded().isEmpty() || !change.getRemoved().isEmpty()) {
+            updateTagList(previewing);
         }
     }
 
@@ -320,6 +407,60 @@ public class MainController {
         setPage(0);
     }
 
+    /**
+     * Fingerprints the images and opens the duplicate resolver on every pair whose histograms are at least the
+     * histogram threshold similar.
+     */
+    private void findDuplicates(List<ImageInfo> imgs) {
+        imgs.removeIf(img -> img.getPath().getName().toLowerCase().endsWith(".gif"));
+        final double threshold = settings.getDouble("histogram_threshold", SimilarityEngine.DEFAULT_THRESHOLD);
+
+        fingerprints.getFingerprints(imgs).thenApply(prints -> {
+            final Map<Integer, ImageHistogram> histograms = new HashMap<>();
+            prints.forEach((id, print) -> histograms.put(id, print.getHistogram()));
+            return similarityEngine.findPairs(imgs, histograms, threshold);
+        }).thenAcceptAsync(pairs -> openDuplicateResolver(controller -> controller.setDataset(asyncDb, pairs)), AsyncDBInterface.FX).exceptionally(ex -> {
+            Main.showDatabaseError("Error reading image fingerprints", ex);
+            return null;
+        });
+    }
+
+    /**
+     * Compares the stored histograms of the whole library, fingerprinted by the duplicate scanner, and opens the
+     * duplicate resolver on every similar pair found. Uses locality-sensitive hashing so that only likely pairs are
+     * compared, with more hash tables finding more pairs at the cost of speed.
+     */
+    private void findLibraryDuplicates() {
+        final double threshold = settings.getDouble("histogram_threshold", SimilarityEngine.DEFAULT_THRESHOLD);
+        final HistogramLSH lsh = new HistogramLSH(Math.max(1, settings.getInt("histogram_lsh_tables", HistogramLSH.DEFAULT_TABLES)));
+
+        asyncDb.read(db -> lsh.findPairs(db, threshold)).thenAcceptAsync(pairs -> openDuplicateResolver(controller -> controller.setDataset(asyncDb, pairs)), AsyncDBInterface.FX).exceptionally(ex -> {
+            Main.showDatabaseError("Error reading image histograms", ex);
+            return null;
+        });
+    }
+
+    private void openDuplicateResolver(Consumer<DuplicateResolverController> setup) {
+        try {
+            Stage stage = new Stage();
+            FXMLLoader loader = new FXMLLoader(getClass().getResource("/fxml/duplicateresolver.fxml"));
+            stage.setScene(new Scene(loader.load(), Screen.getPrimary().getVisualBounds().getWidth() * 0.8, Screen.getPrimary().getVisualBounds().getHeight() * 0.8));
+            DuplicateResolverController controller = loader.getController();
+            controller.setClusterMode(true);
+            setup.accept(controller);
+            stage.showAndWait();
+            controller.shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Main.showErrorMessage("Unexpected Error", "Error loading FXML template", e.getLocalizedMessage());
+        }
+    }
+
+    private void updateImageCacheBudgets() {
+        ImageInfo.THUMBNAILS.setBudget(settings.getInt("thumbnail_cache_mb", SettingsController.getDefaultThumbnailCacheMB()) * 1024L * 1024L);
+        ImageInfo.IMAGES.setBudget(settings.getInt("image_cache_mb", SettingsController.getDefaultImageCacheMB()) * 1024L * 1024L);
+    }
+
     private void closeWindow() {
         try {
             saveProperties();
@@ -328,10 +469,28 @@ public class MainController {
             Main.showErrorMessage("Unexpected Error", "Error saving settings to file", e.getLocalizedMessage());
         }
 
+        logCacheStatistics();
+        if (thumbnailStore != null) {
+            try {
+                thumbnailStore.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         Platform.exit();
         System.exit(0);
     }
 
+    /**
+     * Prints how well the in-memory caches did this session, to help tune their budgets in the settings.
+     */
+    private void logCacheStatistics() {
+        String stats = "Cache statistics: " + ImageInfo.THUMBNAILS + "; " + ImageInfo.IMAGES;
+        if (db != null) stats += "; " + db.getImageCache();
+        System.out.println(stats);
+    }
+
     private static void ensureVisible(ScrollPane pane, Node node) {
         Bounds viewport = pane.getViewportBounds();
         double contentHeight = pane.getContent().getBoundsInLocal().getHeight();
@@ -370,14 +529,7 @@ public class MainController {
             files.forEach(file -> {
                 if (file.exists() && Main.IMG_VID_FILTER.accept(file)) work.add(file);
             });
-            DBInterface db = grid.getDatabase();
-
-            try {
-                db.addBatchImages(work);
-            } catch (SQLException e) {
-                e.printStackTrace();
-                Main.showErrorMessage("Unexpected Error", "Error adding batch images to database", e.getLocalizedMessage());
-            }
+            addBatchImages(work);
 
             settings.setString("last_folder", files.get(0).getParentFile().getAbsolutePath());
         }
@@ -385,15 +537,9 @@ public class MainController {
 
     private void addFolder(File folder) {
         if (folder != null) {
-            DBInterface db = grid.getDatabase();
             File[] files = folder.listFiles(Main.IMG_VID_FILTER);
             if (files == null) return;
-            try {
-                db.addBatchImages(Arrays.asList(files));
-            } catch (SQLException e) {
-                e.printStackTrace();
-                Main.showErrorMessage("Unexpected Error", "Error adding batch images to database", e.getLocalizedMessage());
-            }
+            addBatchImages(Arrays.asList(files));
 
             settings.setString("last_folder", folder.getParentFile().getAbsolutePath());
         }
@@ -401,23 +547,23 @@ public class MainController {
 
     private void addRecurseFolder(File folder) {
         if (folder != null) {
-            final DBInterface db = grid.getDatabase();
-
             final ArrayList<File> files = new ArrayList<>();
             for (File fldr : getSubFolders(folder)) {
                 files.addAll(Arrays.asList(fldr.listFiles(Main.IMG_VID_FILTER)));
             }
-            try {
-                db.addBatchImages(files);
-            } catch (SQLException e) {
-                e.printStackTrace();
-                Main.showErrorMessage("Unexpected Error", "Error adding batch images to database", e.getLocalizedMessage());
-            }
+            addBatchImages(files);
 
             settings.setString("last_folder", folder.getParentFile().getAbsolutePath());
         }
     }
 
+    private void addBatchImages(List<File> files) {
+        asyncDb.addBatchImages(files).exceptionally(ex -> {
+            Main.showDatabaseError("Error adding batch images to database", ex);
+            return null;
+        });
+    }
+
     private void showImage(GridImageView last) {
         if (last != null) {
             preview(last.getInfo());
@@ -438,10 +584,8 @@ public class MainController {
 
     private void setPage(int i) {
         if (i >= 0) {
-            grid.setPage(i);
-            pageNumTextfield.setText(grid.getPage() + "");
-            grid.unselectAll();
-            showImage(grid.selectFirst(false, false));
+            pageNumTextfield.setText(i + "");
+            grid.setPage(i).thenRun(() -> showImage(grid.selectFirst(false, false)));
         }
     }
 
@@ -575,30 +719,19 @@ public class MainController {
             grid.openTagEditorDialog();
             event.consume();
         } else if (event.isControlDown() && event.getCode() == KeyCode.H) {
-            List<SimilarPair> pairs = new ArrayList<>();
-            for (int i = 0; i < grid.getSelected().size(); i++) {
-                for (int j = i + 1; j < grid.getSelected().size(); j++) {
-                    final ImageInfo img1 = grid.getSelected().get(i).getInfo();
-                    final ImageInfo img2 = grid.getSelected().get(j).getInfo();
-                    if (!img1.getPath().getName().toLowerCase().endsWith(".gif") && !img2.getPath().getName().toLowerCase().endsWith(".gif")) {
-                        final double similarity = img1.getHistogram().getSimilarity(img2.getHistogram());
-                        final double confidence = 0.9;
-                        if (similarity >= confidence) {
-                            pairs.add(new SimilarPair(img1, img2, similarity));
-                        }
-                    }
+            //Every kind of duplicate search reads from the database
+            if (db != null) {
+                if (event.isShiftDown()) {
+                    duplicateScanner.scan();
+                    openDuplicateResolver(controller -> controller.setStoredDataset(asyncDb));
+                } else if (event.isAltDown()) {
+                    findLibraryDuplicates();
+                } else {
+                    List<ImageInfo> imgs = new ArrayList<>();
+                    grid.getSelected().forEach(view -> imgs.add(view.getInfo()));
+                    findDuplicates(imgs);
                 }
             }
-            try {
-                Stage stage = new Stage();
-                FXMLLoader loader = new FXMLLoader(getClass().getResource("/fxml/duplicateresolver.fxml"));
-                stage.setScene(new Scene(loader.load(), Screen.getPrimary().getVisualBounds().getWidth() * 0.8, Screen.getPrimary().getVisualBounds().getHeight() * 0.8));
-                ((DuplicateResolverController) loader.getController()).setDataset(db, pairs);
-                stage.showAndWait();
-            } catch (IOException e) {
-                e.printStackTrace();
-                Main.showErrorMessage("Unexpected Error", "Error loading FXML template", e.getLocalizedMessage());
-            }
             event.consume();
         } else if (event.isControlDown() && event.getCode() == KeyCode.S) {
             try {
@@ -607,6 +740,12 @@ public class MainController {
                 stage.setScene(new Scene(loader.load()));
                 ((SettingsController) loader.getController()).setSettings(settings);
                 stage.showAndWait();
+                updateImageCacheBudgets();
+                grid.setThumbnailThreads(settings.getInt("thumbnail_threads", SettingsController.getDefaultThumbnailThreads()));
+                if (duplicateScanner != null) {
+                    duplicateScanner.setMaxDistance(ImageHash.getMaxDistance(settings.getDouble("duplicate_threshold", DuplicateScanner.DEFAULT_THRESHOLD)));
+                    duplicateScanner.scan();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 Main.showErrorMessage("Unexpected Error", "Error loading FXML template", e.getLocalizedMessage());
@@ -8,6 +8,8 @@ import javafx.scene.control.TextField;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import manimage.common.DuplicateScanner;
+import manimage.common.HistogramLSH;
 import manimage.common.settings.Settings;
 
 import java.io.File;
@@ -18,6 +20,11 @@ public class SettingsController {
     public TextField lastFolderTextField;
     public Button lastFolderBrowseButton;
     public CheckBox autoAddDroppedCheckbox;
+    public TextField duplicateThresholdTextField;
+    public TextField histogramTablesTextField;
+    public TextField thumbnailCacheTextField;
+    public TextField imageCacheTextField;
+    public TextField thumbnailThreadsTextField;
     private Settings settings = null;
 
 
@@ -26,9 +33,35 @@ public class SettingsController {
 
         lastFolderTextField.setText(settings.getString("last_folder", null));
         autoAddDroppedCheckbox.setSelected(settings.getBoolean("auto_add_dropped", false));
+        duplicateThresholdTextField.setText(Double.toString(settings.getDouble("duplicate_threshold", DuplicateScanner.DEFAULT_THRESHOLD)));
+        histogramTablesTextField.setText(Integer.toString(settings.getInt("histogram_lsh_tables", HistogramLSH.DEFAULT_TABLES)));
+        thumbnailCacheTextField.setText(Integer.toString(settings.getInt("thumbnail_cache_mb", getDefaultThumbnailCacheMB())));
+        imageCacheTextField.setText(Integer.toString(settings.getInt("image_cache_mb", getDefaultImageCacheMB())));
+        thumbnailThreadsTextField.setText(Integer.toString(settings.getInt("thumbnail_threads", getDefaultThumbnailThreads())));
         Platform.runLater(this::updateAutoAddDroppedDisable);
     }
 
+    /**
+     * @return An eighth of the heap, in MB
+     */
+    static int getDefaultThumbnailCacheMB() {
+        return (int) (Runtime.getRuntime().maxMemory() / 8 / 1024 / 1024);
+    }
+
+    /**
+     * @return A quarter of the heap, in MB
+     */
+    static int getDefaultImageCacheMB() {
+        return (int) (Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024);
+    }
+
+    /**
+     * @return One thread per processor
+     */
+    static int getDefaultThumbnailThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
     private void updateAutoAddDroppedDisable() {
         if (autoAddDroppedCheckbox.isSelected()) {
             lastFolderBrowseButton.setDisable(false);
@@ -45,7 +78,50 @@ public class SettingsController {
     }
 
     public void acceptButtonOnAction(ActionEvent event) {
+        final double threshold;
+        try {
+            threshold = Double.parseDouble(duplicateThresholdTextField.getText());
+            if (threshold <= 0 || threshold > 1) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            Main.showErrorMessage("Invalid Setting", "Duplicate threshold must be a number above 0 and at most 1", duplicateThresholdTextField.getText());
+            event.consume();
+            return;
+        }
+        final int tables;
+        try {
+            tables = Integer.parseInt(histogramTablesTextField.getText());
+            if (tables < 1) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            Main.showErrorMessage("Invalid Setting", "Histogram search tables must be a whole number above 0", histogramTablesTextField.getText());
+            event.consume();
+            return;
+        }
+        final int thumbnailCache, imageCache;
+        try {
+            thumbnailCache = Integer.parseInt(thumbnailCacheTextField.getText());
+            imageCache = Integer.parseInt(imageCacheTextField.getText());
+            if (thumbnailCache < 1 || imageCache < 1) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            Main.showErrorMessage("Invalid Setting", "Image memory must be a whole number of MB above 0", thumbnailCacheTextField.getText() + ", " + imageCacheTextField.getText());
+            event.consume();
+            return;
+        }
+        final int thumbnailThreads;
+        try {
+            thumbnailThreads = Integer.parseInt(thumbnailThreadsTextField.getText());
+            if (thumbnailThreads < 1) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            Main.showErrorMessage("Invalid Setting", "Thumbnail loading threads must be a whole number above 0", thumbnailThreadsTextField.getText());
+            event.consume();
+            return;
+        }
+
         settings.setString("last_folder", lastFolderTextField.getText());
+        settings.setDouble("duplicate_threshold", threshold);
+        settings.setInteger("histogram_lsh_tables", tables);
+        settings.setInteger("thumbnail_cache_mb", thumbnailCache);
+        settings.setInteger("image_cache_mb", imageCache);
+        settings.setInteger("thumbnail_threads", thumbnailThreads);
         settings.setBoolean("auto_add_dropped", autoAddDroppedCheckbox.isSelected());
         ((Stage)autoAddDroppedCheckbox.getScene().getWindow()).close();
         event.consume();
@@ -0,0 +1,180 @@
+package manimage.main;
+
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import manimage.common.ImageInfo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads thumbnails of grid cells on a fixed pool of threads, closest to the viewport first. Unlike JavaFX's background
+ * loading, which works through images in the order they were asked for, requests can be moved up or down the queue as
+ * the grid scrolls and withdrawn once their cell is out of view, so the cells on screen never wait behind ones that
+ * have already scrolled past.
+ * <p>
+ * Images that are not in a cell yet, such as those of the next page, can be prefetched into the thumbnail cache.
+ * <p>
+ * Requests are made, moved and cancelled on the FX thread, and thumbnails are handed to their cells on it.
+ */
+class ThumbnailLoader {
+
+    private final ThreadPoolExecutor executor;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+
+    /**
+     * Requests that have not been handed to their cell yet, including ones being loaded.
+     */
+    private final Map<GridImageView, Request> pending = new HashMap<>();
+
+    /**
+     * Prefetches that have not finished yet, keyed by image id.
+     */
+    private final Map<Integer, Request> prefetching = new HashMap<>();
+
+
+    ThumbnailLoader(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread t = new Thread(r, "Thumbnail Loader " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        //Requests are put straight in the queue when they are moved, so every thread must already be waiting on it
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queues the thumbnail of a cell, or moves it if it is already queued.
+     *
+     * @param priority Lower loads sooner, such as the distance in pixels from the viewport
+     */
+    void request(GridImageView view, double priority) {
+        final Request existing = pending.get(view);
+        if (existing != null && existing.img == view.getInfo()) {
+            //Re-inserting is the only way to move an element of a priority queue
+            if (existing.priority != priority && queue.remove(existing)) {
+                existing.priority = priority;
+                queue.add(existing);
+            }
+            return;
+        }
+        if (existing != null) cancel(view);
+
+        final Request request = new Request(view, view.getInfo(), priority);
+        pending.put(view, request);
+        executor.execute(request);
+    }
+
+    /**
+     * Replaces the images being prefetched, cancelling any that are not in the new list. Prefetched thumbnails are only
+     * put in the thumbnail cache.
+     *
+     * @param imgs     Images to prefetch, most wanted first
+     * @param priority Priority of the first image, each following one being slightly lower
+     */
+    void prefetch(List<ImageInfo> imgs, double priority) {
+        final Set<Integer> ids = new HashSet<>();
+        imgs.forEach(img -> ids.add(img.getId()));
+        final Iterator<Map.Entry<Integer, Request>> iter = prefetching.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Request request = iter.next().getValue();
+            if (!ids.contains(request.img.getId())) {
+                request.cancelled = true;
+                queue.remove(request);
+                iter.remove();
+            }
+        }
+
+        for (int i = 0; i < imgs.size(); i++) {
+            final ImageInfo img = imgs.get(i);
+            final Request existing = prefetching.get(img.getId());
+            if (existing != null) {
+                if (existing.priority != priority + i && queue.remove(existing)) {
+                    existing.priority = priority + i;
+                    queue.add(existing);
+                }
+            } else {
+                final Request request = new Request(null, img, priority + i);
+                prefetching.put(img.getId(), request);
+                executor.execute(request);
+            }
+        }
+    }
+
+    /**
+     * Drops the request of a cell, if it has one. A thumbnail already being loaded is still cached, but not shown.
+     */
+    void cancel(GridImageView view) {
+        final Request request = pending.remove(view);
+        if (request != null) {
+            request.cancelled = true;
+            queue.remove(request);
+        }
+    }
+
+    /**
+     * Changes how many thumbnails are loaded at once.
+     */
+    void setThreads(int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        executor.prestartAllCoreThreads();
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+
+        /**
+         * Cell to show the thumbnail in, or null if it is only being prefetched.
+         */
+        private final GridImageView view;
+        private final ImageInfo img;
+        private volatile double priority;
+        private volatile boolean cancelled = false;
+
+
+        private Request(GridImageView view, ImageInfo img, double priority) {
+            this.view = view;
+            this.img = img;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+
+            final Image thumbnail = img.readThumbnail();
+            Platform.runLater(() -> {
+                if (cancelled) return;
+                if (view == null) {
+                    prefetching.remove(img.getId(), this);
+                    return;
+                }
+
+                pending.remove(view, this);
+                if (view.getInfo() == img) view.setThumbnail(thumbnail);
+            });
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            return Double.compare(priority, other.priority);
+        }
+
+    }
+
+}